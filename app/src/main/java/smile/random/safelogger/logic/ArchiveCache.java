@@ -0,0 +1,74 @@
+package smile.random.safelogger.logic;
+
+import android.util.LruCache;
+
+import java.util.Collections;
+import java.util.List;
+
+import smile.random.safelogger.logic.models.RecordArchive;
+
+/**
+ * Author : Assaf Attias
+ * A cache of the decrypted archives of log records by log id (least recently used logs are evicted),
+ * bounded by the total number of archive passwords it holds.
+ */
+public class ArchiveCache
+{
+    private final LruCache<Integer, List<RecordArchive>> cache;
+
+    /**
+     * Constructor
+     * @param maxSize - the max number of archive passwords to hold (of all logs)
+     */
+    public ArchiveCache(int maxSize)
+    {
+        this.cache = new LruCache<Integer, List<RecordArchive>>(maxSize)
+        {
+            @Override
+            protected int sizeOf(Integer logId, List<RecordArchive> archives)
+            {
+                return archives.size() + 1; // a log without archives still takes an entry
+            }
+        };
+    }
+
+    /**
+     * Get the cached archives of a given log
+     * @param logId - the id of the log
+     * @return unmodifiable list of the decrypted archives, null if not cached
+     */
+    public synchronized List<RecordArchive> get(int logId)
+    {
+        return this.cache.get(logId);
+    }
+
+    /**
+     * Add the archives of a given log to the cache
+     * @param logId - the id of the log
+     * @param archives - the decrypted archives of the log
+     * @return unmodifiable view of the cached archives
+     */
+    public synchronized List<RecordArchive> put(int logId, List<RecordArchive> archives)
+    {
+        List<RecordArchive> cached = Collections.unmodifiableList(archives);
+        this.cache.put(logId, cached);
+        return cached;
+    }
+
+    /**
+     * Remove the archives of a given log from the cache
+     * @param logId - the id of the log
+     */
+    public synchronized void remove(int logId)
+    {
+        this.cache.remove(logId);
+    }
+
+    /**
+     * Remove all the archives from the cache
+     */
+    public synchronized void clear()
+    {
+        this.cache.evictAll();
+    }
+}
@@ -0,0 +1,225 @@
+package smile.random.safelogger.logic;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.crypto.SecretKey;
+
+import smile.random.safelogger.logic.models.PreviewRecord;
+import smile.random.safelogger.logic.models.RecordArchive;
+
+/**
+ * Author : Assaf Attias
+ * Asynchronous interface of the InfoManager for the GUI, every operation returns a future instead of blocking the caller.
+ * operations that use the database (and the InfoManager state) run one after another on a single I/O thread,
+ * encryption and decryption of passwords run on a bounded crypto pool (see C.CRYPTO_THREADS), so they do not wait for the database work.
+ * complete the futures on the main thread with thenAcceptAsync(action, activity::runOnUiThread).
+ */
+public class AsyncInfoManager
+{
+    private final InfoManager manager;
+
+    // shared by all the instances, InfoManager is created again on every app start (see InfoManager.initialize)
+    private static final ExecutorService io = Executors.newSingleThreadExecutor(runnable -> new Thread(runnable,"InfoManager-io"));
+    private static final AtomicInteger cryptoCount = new AtomicInteger();
+    private static final ExecutorService crypto = Executors.newFixedThreadPool(C.CRYPTO_THREADS, runnable -> new Thread(runnable,"InfoManager-crypto-" + cryptoCount.incrementAndGet()));
+
+    /**
+     * Constructor
+     * @param manager - the InfoManager to run the operations of
+     */
+    AsyncInfoManager(InfoManager manager)
+    {
+        this.manager = manager;
+    }
+
+    /**
+     * Add a new Log information, the password is encrypted on the crypto pool and then added on the I/O thread.
+     * see InfoManager.addRecord
+     * @param logName - string, the name of the log
+     * @param userName - string, the user-name used in the log
+     * @param password - string, the password used in the log
+     * @return future of true if a new log was added, false otherwise
+     */
+    public CompletableFuture<Boolean> addRecord(String logName, String userName, String password)
+    {
+        return CompletableFuture
+                .supplyAsync(() -> this.manager.validateLog(logName,userName,password), io)
+                .thenApplyAsync(legal -> legal.equals(InfoManager.ValidationResult.Legal) ? this.manager.encryptPassword(password) : null, crypto)
+                .thenApplyAsync(cipher -> cipher != null && this.manager.addEncryptedRecord(logName,userName,cipher), io);
+    }
+
+    /**
+     * Validation a given new Log Information, see InfoManager.validateLog
+     * @param logName - the name of the log
+     * @param userName - user name of the log
+     * @param password - password of the log
+     * @return future of the result of the validation
+     */
+    public CompletableFuture<InfoManager.ValidationResult> validateLog(String logName, String userName, String password)
+    {
+        return CompletableFuture.supplyAsync(() -> this.manager.validateLog(logName,userName,password), io);
+    }
+
+    /**
+     * Validation a given Log Information update, see InfoManager.validateLogUpdate
+     * @param record - the record to check its archive
+     * @param name - the name of the log
+     * @param userName - user name of the log
+     * @param password - password of the log
+     * @return future of the result of the validation
+     */
+    public CompletableFuture<InfoManager.ValidationResult> validateLogUpdate(PreviewRecord record, String name, String userName, String password)
+    {
+        return CompletableFuture.supplyAsync(() -> this.manager.validateLogUpdate(record,name,userName,password), io);
+    }
+
+    /**
+     * Update a given log-record information, a changed password is encrypted on the crypto pool and then written on the I/O thread.
+     * see InfoManager.updateRecord
+     * @param record - the log record to be updated
+     * @param logName - the new log name
+     * @param userName - the new user name
+     * @param password - the new plain-txt password
+     * @return future of true if the information was updated successfully, false otherwise
+     */
+    public CompletableFuture<Boolean> updateRecord(PreviewRecord record, String logName, String userName, String password)
+    {
+        return validateLogUpdate(record,logName,userName,password)
+                .thenCompose(legal -> legal.equals(InfoManager.ValidationResult.Legal) || legal.equals(InfoManager.ValidationResult.WarnExist) ?
+                        getPassword(record) : CompletableFuture.completedFuture(null))
+                .thenCompose(oldPassword -> {
+                    if(oldPassword == null)
+                        return CompletableFuture.completedFuture(false);
+                    if(oldPassword.equals(password))
+                        return CompletableFuture.supplyAsync(() -> this.manager.updateEncryptedRecord(record,logName,userName,password,null), io);
+
+                    return CompletableFuture
+                            .supplyAsync(() -> this.manager.encryptPassword(password), crypto)
+                            .thenApplyAsync(cipher -> cipher != null && this.manager.updateEncryptedRecord(record,logName,userName,password,cipher), io);
+                });
+    }
+
+    /**
+     * Remove a given record from the database, see InfoManager.removeRecord
+     * @param record - a given record to delete from the logging.
+     * @return future of true if the record has been removed, false otherwise.
+     */
+    public CompletableFuture<Boolean> removeRecord(PreviewRecord record)
+    {
+        return CompletableFuture.supplyAsync(() -> this.manager.removeRecord(record), io);
+    }
+
+    /**
+     * Add a listener of the changes of the loaded records on the I/O thread, see InfoManager.addRecordListener
+     * @param listener - the listener to add, it is first called with all the loaded records
+     * @return future of the List with the loaded records, null if user did not authenticated (not added)
+     */
+    public CompletableFuture<List<PreviewRecord>> addRecordListener(RecordListener listener)
+    {
+        return CompletableFuture.supplyAsync(() -> this.manager.addRecordListener(listener), io);
+    }
+
+    /**
+     * Get the logging data that was loaded so far, see InfoManager.getRecordsPreview
+     * @return future of the List with records, null if user did not authenticated
+     */
+    public CompletableFuture<List<PreviewRecord>> getRecordsPreview()
+    {
+        return CompletableFuture.supplyAsync(this.manager::getRecordsPreview, io);
+    }
+
+    /**
+     * Load the next page of the logging data on the I/O thread, see InfoManager.getNextRecordsPage
+     * @return future of the List with the records of the page (empty if no more records), null if user did not authenticated
+     */
+    public CompletableFuture<List<PreviewRecord>> getNextRecordsPage()
+    {
+        return CompletableFuture.supplyAsync(this.manager::getNextRecordsPage, io);
+    }
+
+    /**
+     * Load all the remaining pages of the logging data, each page is loaded by its own task on the I/O thread
+     * so other operations are not delayed until all the pages are loaded. see InfoManager.getNextRecordsPage
+     * @return future of true if all the records are loaded, false if user did not authenticated
+     */
+    public CompletableFuture<Boolean> loadAllRecordPages()
+    {
+        return getNextRecordsPage().thenCompose(page -> {
+            if(page == null)
+                return CompletableFuture.completedFuture(false);
+            if(page.isEmpty())
+                return CompletableFuture.completedFuture(true);
+            return loadAllRecordPages();
+        });
+    }
+
+    /**
+     * Get the plain-text password of a given record, a password that is not cached is fetched on the I/O thread and decrypted on the crypto pool.
+     * see InfoManager.getPassword
+     * @param record - the record to get its password
+     * @return future of the decrypted password, null if user did not authenticated or problem occur
+     */
+    public CompletableFuture<String> getPassword(PreviewRecord record)
+    {
+        String cached = this.manager.getCachedPassword(record); // memory only
+        if(cached != null)
+            return CompletableFuture.completedFuture(cached);
+
+        return CompletableFuture
+                .supplyAsync(() -> this.manager.getPasswordCipher(record), io)
+                .thenApplyAsync(cipher -> this.manager.decryptPassword(record,cipher), crypto);
+    }
+
+    /**
+     * Get the decrypted archives of a given log-record, see InfoManager.getRecordArchive
+     * @param id - the id of the log-record to fetch its archives
+     * @return future of the List of decrypted archive, null if user did not authenticated or problem occur
+     */
+    public CompletableFuture<List<RecordArchive>> getRecordArchive(int id)
+    {
+        return CompletableFuture.supplyAsync(() -> this.manager.getRecordArchive(id), io);
+    }
+
+    /**
+     * Update the user authentication key and re-encrypt all the records on the crypto pool, see InfoManager.updateKey
+     * @param key - the new authentication key
+     * @return future of true if the update was successful, false otherwise
+     */
+    public CompletableFuture<Boolean> updateKey(String key)
+    {
+        return CompletableFuture.supplyAsync(() -> this.manager.updateKey(key), crypto);
+    }
+
+    /**
+     * Derive the secret of the current key again on the crypto pool, aborted if the key was changed since the login, see InfoManager.rehashKey
+     * @param key - the current authentication key, as given on login
+     * @param loginSecret - the secret of the login that started the rehash
+     * @return future of true if the update was successful, false otherwise
+     */
+    CompletableFuture<Boolean> rehashKey(String key, SecretKey loginSecret)
+    {
+        return CompletableFuture.supplyAsync(() -> this.manager.rehashKey(key,loginSecret), crypto);
+    }
+
+    /**
+     * Write the deferred record changes and log off on the I/O thread, see InfoManager.logOff
+     * @return future of true if the user is logged off, false if deferred changes could not be written
+     */
+    public CompletableFuture<Boolean> logOff()
+    {
+        return CompletableFuture.supplyAsync(this.manager::logOff, io);
+    }
+
+    /**
+     * Convert the passwords that are still in the old format to the packed format on the crypto pool, see InfoManager.migrateRecordFormat
+     * @return future of true if no password is left in the old format, false otherwise
+     */
+    public CompletableFuture<Boolean> migrateRecordFormat()
+    {
+        return CompletableFuture.supplyAsync(() -> this.manager.migrateRecordFormat(), crypto);
+    }
+}
@@ -10,25 +10,54 @@ public class C {
     public final static String HASH_ALGORITHM = "SHA-512";
     public final static String ENC_KEY_ALGORITHM = "PBKDF2WithHmacSHA256";
     public final static String KEY_ALGORITHM = "AES";
-    public final static String ENC_ALGORITHM = "AES/CBC/PKCS5Padding";
+    public final static String ENC_ALGORITHM = "AES/CBC/PKCS5Padding"; // old record format, the initial vector is saved apart
+    public final static String AEAD_ALGORITHM = "AES/GCM/NoPadding"; // record format, see SecurityHandler.encryptRecord
+    public final static String MAC_ALGORITHM = "HmacSHA256";
+    public final static String MAC_KEY_LABEL = "password-mac"; // derives the mac key from the secret, never change
+    public final static String VERIFIER_LABEL = "key-verifier"; // derives the saved key verifier from the secret, never change
 
     public final static int BLOCK_SIZE = 16;
     public final static int KEY_LEN = 256;
-    public final static int STR_PARAM = 65536; // num of itr of enc
+    public final static byte RECORD_FORMAT_CBC = 0; // record format of a key whose passwords may still be in the old format (AES/CBC with an initial vector)
+    public final static byte RECORD_FORMAT_GCM = 1; // header byte of a packed record password: header, nonce, encrypted password and tag
+    public final static int RECORD_HEADER_SIZE = 1;
+    public final static int NONCE_SIZE = 12;
+    public final static int TAG_LEN = 128; // bits
+    public final static int STR_PARAM = 65536; // min num of itr of enc (and the num of keys saved before calibration)
+    public final static long KDF_TARGET_MILLIS = 300; // key derivation time the num of itr is calibrated to (unlock latency)
+    public final static int KDF_CALIBRATION_ITERATIONS = 8192; // num of itr timed by the calibration
+    public final static int KDF_REHASH_MARGIN = 2; // a key is derived again only if its cost is lower than the target by more than this factor (calibration noise)
+
+    public final static int KDF_PBKDF2_SHA512 = 0; // PBKDF2, verified by a salted SHA-512 of the key (keys saved before the verifier)
+    public final static int KDF_PBKDF2 = 1; // PBKDF2, verified by the secret (see SecurityHandler.getVerifier)
+    public final static int KDF_SCRYPT = 2; // scrypt, verified by the secret
+    public final static int KDF = KDF_PBKDF2; // the key derivation function of new keys
+    public final static int SCRYPT_COST = 16384; // N, 128 * r * N bytes (16MB) per derivation
+    public final static int SCRYPT_BLOCK_SIZE = 8; // r
+    public final static int SCRYPT_PARALLELISM = 1; // p
 
     public static final int MIN_KEY_LEN = 6;
     public static final int SALT = 1;
     public static final int HASHED = 0;
+    public static final int ENCRYPTED = 0;
+    public static final int IV = 1;
+    public static final int MAC = 2;
 
     public static final double D_W = 0.95;
     public static final double D_H = 0.7;
 
-    public static final int DAY = 0;
-    public static final int MONTH = 1;
-    public static final int YEAR = 2;
+    public static final String DATE_FORMAT = "d/M/yyyy";
+
+    public static final int DB_VERSION = 10; // the schema version, must match the number of migrations in SQLHandler
+    public static final int STATEMENT_CACHE_SIZE = 16; // max compiled statements kept per session
+    public static final int REKEY_CHUNK_SIZE = 500; // rows written (and verified) per re-key chunk
+    public static final int REKEY_TASK_SIZE = 64; // max passwords re-encrypted by one re-key worker task
+    public static final int MAX_SQL_VARIABLES = 500; // max bind variables used in one query
+    public static final int FORMAT_CHUNK_SIZE = 100; // rows converted to the packed record format per transaction
 
-    public static final int RECORDS = 0;
-    public static final int ARCHIVE = 1;
+    public static final int CHANGE_INSERT = 0;
+    public static final int CHANGE_UPDATE = 1;
+    public static final int CHANGE_DELETE = 2;
 
     public static final String PASSWORD_HIDDEN = "********************";
     public static final String TAP_ACTION_TITLE = "Choose an action";
@@ -44,6 +73,18 @@ public class C {
 
     public static final int MAX_TEXT_LEN = 20;
 
+    public static final int PASSWORD_CACHE_SIZE = 32; // max decrypted passwords kept in memory
+    public static final long PASSWORD_CACHE_TTL = 2 * 60 * 1000; // milliseconds a decrypted password is kept
+    public static final int ARCHIVE_CACHE_SIZE = 256; // max decrypted archive passwords kept in memory
+    public static final long WRITE_BEHIND_DELAY = 2000; // max milliseconds a deferred record change waits before it is written
+    public static final int WRITE_BEHIND_MAX = 20; // deferred record changes that are written right away
+    public static final int LOG_OFF_FLUSH_TRIES = 3; // times the deferred changes are written on log off before it fails
+
+    public static final int CRYPTO_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors() - 1); // async encryption pool size
+
+    public static final int PAGE_SIZE = 50; // records fetched in each page of the record list
+    public static final int PAGE_PREFETCH = 10; // rows left to scroll before the next page is fetched
+
     public static final int NORMAL = 0;
     public static final int DIGIT = 1;
     public static final int UPPER = 2;
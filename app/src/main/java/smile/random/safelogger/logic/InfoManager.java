@@ -1,31 +1,102 @@
 package smile.random.safelogger.logic;
 
+import android.content.ComponentCallbacks2;
 import android.content.Context;
+import android.content.res.Configuration;
+import android.util.Log;
 
+import java.security.MessageDigest;
+import java.time.LocalDate;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
 
+import javax.crypto.Mac;
 import javax.crypto.SecretKey;
 
+import smile.random.safelogger.logic.models.KdfParams;
 import smile.random.safelogger.logic.models.PreviewRecord;
 import smile.random.safelogger.logic.models.RecordArchive;
+import smile.random.safelogger.logic.models.RecordChanges;
+import smile.random.safelogger.logic.models.RecordMutation;
+import smile.random.safelogger.logic.models.StoredKey;
 
 /**
  * Author : Assaf Attias
  * Manage All Application Logic and provide interface for the GUI
+ * can be used from any thread, the state is published as immutable snapshots (see RecordSnapshot) that are read without locking.
  */
 public class InfoManager {
 
+    /**
+     * The keys of an authenticated session, published together so a reader never sees a secret with the mac key of another
+     */
+    private static final class Keys
+    {
+        private final SecretKey secret;
+        private final SecretKey macKey; // key of the password macs, derived from the secret
+        private final boolean legacy; // true if passwords in the old format may exist, accepted only then (see SecurityHandler.decryptRecord)
+
+        private Keys(SecretKey secret, SecretKey macKey, boolean legacy)
+        {
+            this.secret = secret;
+            this.macKey = macKey;
+            this.legacy = legacy;
+        }
+    }
+
     private Context context;
     private SQLHandler db;
-    private SecretKey secret;
+    private volatile Keys keys = null; // null if user did not authenticated
+
+    private static volatile InfoManager instance = null;
+
+    // the state is read without locking from any thread, changes are serialized by the lock and published as a new snapshot
+    private final Object lock = new Object();
+    private volatile RecordSnapshot state = RecordSnapshot.EMPTY;
+    private Iterator<List<PreviewRecord>> pages; // guarded by lock
+    private volatile boolean listChanged = true;
+
+    private PasswordCache passwords;
+    private ArchiveCache archives;
+
+    private AsyncInfoManager async;
+
+    private volatile WriteBehindQueue queue; // deferred record changes, null if changes are written right away
+    private final Map<Integer, Integer> flushedIds = new ConcurrentHashMap<>(); // temporary id -> id of the written records still in the list
+    private final Set<Integer> rejectedIds = ConcurrentHashMap.newKeySet(); // records whose deferred change was rejected by the DB, fetched again
+
+    private final List<RecordListener> listeners = new CopyOnWriteArrayList<>();
+
+    // the decrypted passwords are dropped when the app is no longer visible
+    private final ComponentCallbacks2 trimCallbacks = new ComponentCallbacks2()
+    {
+        @Override
+        public void onTrimMemory(int level)
+        {
+            if(level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN)
+                clearDecrypted();
+        }
 
-    private static InfoManager instance = null;
+        @Override
+        public void onConfigurationChanged(Configuration configuration) { }
 
-    private List<PreviewRecord> records;
-    private boolean listChanged = true;
+        @Override
+        public void onLowMemory()
+        {
+            clearDecrypted();
+        }
+    };
 
     /**
      * Constructor of the Singleton
@@ -35,7 +106,10 @@ public class InfoManager {
     {
         this.context = context;
         this.db = new SQLHandler(context);
-        this.records = new ArrayList<>();
+        this.passwords = new PasswordCache(C.PASSWORD_CACHE_SIZE,C.PASSWORD_CACHE_TTL);
+        this.archives = new ArchiveCache(C.ARCHIVE_CACHE_SIZE);
+        this.async = new AsyncInfoManager(this);
+        context.getApplicationContext().registerComponentCallbacks(this.trimCallbacks);
     }
 
     /**
@@ -44,7 +118,22 @@ public class InfoManager {
      */
     public static void initialize(Context c)
     {
+        InfoManager previous = instance;
         instance = new InfoManager(c);
+        if(previous != null)
+        {
+            previous.context.getApplicationContext().unregisterComponentCallbacks(previous.trimCallbacks);
+            previous.db.closeSession(); // after its queued writes, the database writer is shared (see SQLHandler.write)
+        }
+    }
+
+    /**
+     * Remove all the decrypted passwords (records and archives) from memory, they are decrypted again when needed
+     */
+    private void clearDecrypted()
+    {
+        this.passwords.clear();
+        this.archives.clear();
     }
 
     /**
@@ -56,6 +145,155 @@ public class InfoManager {
         return instance;
     }
 
+    /**
+     * Get the asynchronous interface of this InfoManager, to use from the main (GUI) thread
+     * @return the AsyncInfoManager of this instance
+     */
+    public AsyncInfoManager async()
+    {
+        return this.async;
+    }
+
+    /**
+     * Enable or disable deferred writing of record changes (add/update/remove).
+     * when enabled, changes are applied to the records right away and written to the database later (see WriteBehindQueue).
+     * @param enabled - true to defer the writes, false to write every change right away
+     * @return true if the mode was set, false if pending changes could not be written (the mode is not changed)
+     */
+    public boolean setWriteBehind(boolean enabled)
+    {
+        synchronized (this.lock)
+        {
+            if(enabled && this.queue == null)
+                this.queue = new WriteBehindQueue(this.db,this::onFlushed);
+            else if(!enabled && this.queue != null)
+            {
+                if(!this.queue.flush())
+                    return false;
+                this.queue = null;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Called by the WriteBehindQueue after deferred changes were written, the records are synced again on the next preview.
+     * runs on the thread of the flush while it holds the queue lock, so it must not wait for the InfoManager lock
+     * @param insertedIds - map between the temporary id of each written insert and its id
+     * @param rejected - the changes the DB rejected (the log name is used), their records are fetched again as they are in the DB
+     */
+    private void onFlushed(Map<Integer, Integer> insertedIds, List<RecordMutation> rejected)
+    {
+        this.flushedIds.putAll(insertedIds); // before the rejected, a rejected update of a written insert is fetched with its id
+        for(RecordMutation mutation : rejected)
+        {
+            Log.w("InfoManager","the change of " + mutation.getLogName() + " was rejected, the log name is used");
+            this.rejectedIds.add(mutation.getId());
+        }
+        this.listChanged = true;
+        if(!this.listeners.isEmpty())
+            this.async.getRecordsPreview(); // sync on the I/O thread, the listeners get the written ids from there
+    }
+
+    /**
+     * Add a listener of the changes of the loaded records, while there are listeners the records are synced right after every change.
+     * the listener is first called with all the loaded records as inserted, while locked so no change is missed in between.
+     * this method can be called only after authentication.
+     * @param listener - the listener to add
+     * @return unmodifiable List with the loaded records the listener was called with, null if user did not authenticated (not added)
+     */
+    public List<PreviewRecord> addRecordListener(RecordListener listener)
+    {
+        synchronized (this.lock)
+        {
+            List<PreviewRecord> records = getRecordsPreview();
+            if(records == null)
+                return null;
+
+            this.listeners.add(listener);
+            if(!records.isEmpty())
+                listener.onRecordsChanged(records,Collections.emptyList(),Collections.emptyList());
+            return records;
+        }
+    }
+
+    /**
+     * Remove a listener that was added with addRecordListener
+     * @param listener - the listener to remove
+     */
+    public void removeRecordListener(RecordListener listener)
+    {
+        this.listeners.remove(listener);
+    }
+
+    /**
+     * Mark the records as changed in the database, the records are synced on the next preview
+     * or right away when there are listeners of the changes.
+     * must be called while holding the lock.
+     */
+    private void changed()
+    {
+        this.listChanged = true;
+        if(!this.listeners.isEmpty())
+            getRecordsPreview();
+    }
+
+    /**
+     * Publish a new snapshot of the records and notify the listeners of the records that were changed from the current one.
+     * must be called while holding the lock.
+     * @param next - the snapshot to publish
+     */
+    private void publish(RecordSnapshot next)
+    {
+        RecordSnapshot current = this.state;
+        this.state = next;
+        if(this.listeners.isEmpty() || current.getRecords() == next.getRecords())
+            return;
+
+        List<PreviewRecord> inserted = new ArrayList<>();
+        List<PreviewRecord> updated = new ArrayList<>();
+        List<Integer> removed = new ArrayList<>();
+        for(PreviewRecord record : next.getList())
+        {
+            PreviewRecord old = current.getRecords().get(record.getId());
+            if(old == null)
+                inserted.add(record);
+            else if(old != record)
+                updated.add(record);
+        }
+        for(int id : current.getRecords().keySet())
+        {
+            if(!next.getRecords().containsKey(id))
+                removed.add(id);
+        }
+
+        if(inserted.isEmpty() && updated.isEmpty() && removed.isEmpty())
+            return;
+        for(RecordListener listener : this.listeners)
+            listener.onRecordsChanged(Collections.unmodifiableList(inserted),Collections.unmodifiableList(updated),Collections.unmodifiableList(removed));
+    }
+
+    /**
+     * Write all the deferred record changes (if any) to the database
+     * @return true if nothing is pending, false otherwise
+     */
+    private boolean flushPending()
+    {
+        WriteBehindQueue queue = this.queue;
+        return queue == null || queue.flush();
+    }
+
+    /**
+     * Get the database id of a record, records added with deferred writing have a temporary id until the list is synced
+     * @param id - the id of the record (see PreviewRecord.getId)
+     * @return the id of the record in the database, or its temporary id if it was not written yet
+     */
+    private int resolve(int id)
+    {
+        WriteBehindQueue queue = this.queue;
+        return queue == null ? id : queue.resolve(id);
+    }
+
     /**
      * Generate random password base on a given parameters
      * @param passLen - the length of the password
@@ -141,7 +379,7 @@ public class InfoManager {
      */
     public boolean isAuthenticate()
     {
-        return this.secret != null;
+        return this.keys != null;
     }
 
     /**
@@ -202,7 +440,25 @@ public class InfoManager {
         if(password.isEmpty())
             return ValidationResult.BadShortPassword;
 
-        return this.db.isLogNameUnique(name) ? ValidationResult.Legal : ValidationResult.BadExist;
+        return getLogNames().contains(name) ? ValidationResult.BadExist : ValidationResult.Legal;
+    }
+
+    /**
+     * Get the index of all the log names, loaded from the database on first use and kept updated on add/update/delete
+     * @return set of all the log names
+     */
+    private Set<String> getLogNames()
+    {
+        Set<String> names = this.state.getNames();
+        if(names != null)
+            return names;
+
+        synchronized (this.lock)
+        {
+            if(this.state.getNames() == null)
+                this.state = this.state.withNames(this.db.getLogNames());
+            return this.state.getNames();
+        }
     }
 
     /**
@@ -221,26 +477,87 @@ public class InfoManager {
         if(result.equals(ValidationResult.BadExist) && record.getLogName().equals(name))
             result = ValidationResult.Legal;
 
-        if(result.equals(ValidationResult.Legal) && isAuthenticate())
+        Keys keys = this.keys;
+        if(result.equals(ValidationResult.Legal) && keys != null)
         {
-            boolean exists = false;
-            List<RecordArchive> archives = getRecordArchive(record.getId());
-
-            for (int i = 0; !exists && i < archives.size(); i++)
-                exists = password.equals(archives.get(i).getPassword());
-
-            return exists ? ValidationResult.WarnExist : result;
+            try
+            {
+                WriteBehindQueue queue = this.queue;
+                int id = resolve(record.getId());
+                byte[] mac = SecurityHandler.mac(password,keys.macKey);
+                boolean exists = this.db.isPasswordArchived(id,mac);
+                // a deferred password change archives the password that is in the database when written
+                if(!exists && queue != null && queue.getCipher(id) != null)
+                    exists = this.db.isPasswordCurrent(id,mac);
+                return exists ? ValidationResult.WarnExist : result;
+            }
+            catch (Exception e)
+            {
+                e.printStackTrace();
+                return ValidationResult.Bad;
+            }
         }
 
         return result;
     }
 
     /**
-     * Remove the secret key that was fetched in the authentication process
+     * Check if a given password is used (or was used) by any of the records, without decrypting any password.
+     * this method can be called only after authentication.
+     * @param password - the plain-text password to check
+     * @return true if the password is found in any record or archive, false otherwise
      */
-    public void logOff()
+    public boolean isPasswordInUse(String password)
     {
-        this.secret = null;
+        Keys keys = this.keys;
+        if(keys == null || password == null)
+            return false;
+
+        try
+        {
+            WriteBehindQueue queue = this.queue;
+            byte[] mac = SecurityHandler.mac(password,keys.macKey);
+            return this.db.isPasswordUsed(mac) || (queue != null && queue.hasMac(mac));
+        }
+        catch (Exception e)
+        {
+            e.printStackTrace();
+        }
+        return false;
+    }
+
+    /**
+     * Write the deferred record changes, remove the secret key that was fetched in the authentication process and close the session connection.
+     * if the deferred changes can not be written (tried C.LOG_OFF_FLUSH_TRIES times) the user stays logged in and the changes stay pending.
+     * @return true if the user is logged off, false if deferred changes could not be written
+     */
+    public boolean logOff()
+    {
+        synchronized (this.lock)
+        {
+            if(this.queue != null)
+            {
+                boolean flushed = false;
+                for(int i = 0; !flushed && i < C.LOG_OFF_FLUSH_TRIES; i++)
+                    flushed = this.queue.flush();
+                if(!flushed)
+                    return false;
+                this.queue = new WriteBehindQueue(this.db,this::onFlushed);
+            }
+            this.flushedIds.clear();
+            this.rejectedIds.clear();
+
+            this.keys = null;
+            if(this.state.getVersion() != -1)
+                this.db.trimChanges(this.state.getVersion());
+            this.db.closeSession();
+
+            publish(RecordSnapshot.EMPTY);
+            this.pages = null;
+            clearDecrypted();
+            this.listChanged = true;
+            return true;
+        }
     }
 
     /**
@@ -251,17 +568,37 @@ public class InfoManager {
     public boolean authentication(String keyPassword)
     {
         ValidationResult legal = validateKey(keyPassword);
-        if (this.db.hasKey() && legal.equals(ValidationResult.Legal))
+        if (legal.equals(ValidationResult.Legal))
         {
             try
             {
-                byte[][] sysKeyInfo = this.db.getKey();
-
-                byte[] hashed = SecurityHandler.hash(keyPassword,sysKeyInfo[C.SALT]);
+                StoredKey storedKey = this.db.getKey();
+                if(storedKey == null)
+                    return false;
+                KdfParams params = storedKey.getParams();
 
-                boolean result = Arrays.equals(sysKeyInfo[C.HASHED],hashed); // authenticate
+                // authenticate, the secret to use for enc/dec is derived only if the key matches
+                SecretKey secret = SecurityHandler.verifyKey(keyPassword,storedKey.getSalt(),storedKey.getHashed(),params);
+                boolean result = secret != null;
                 if(result)
-                    this.secret = SecurityHandler.getKeyFromPassword(keyPassword,sysKeyInfo[C.SALT]); // update secret to use for enc/dec
+                {
+                    boolean legacy = storedKey.getRecordFormat() != C.RECORD_FORMAT_GCM;
+                    Keys keys = new Keys(secret,SecurityHandler.getMacKey(secret),legacy);
+                    synchronized (this.lock)
+                    {
+                        this.keys = keys;
+                        this.db.openSession(); // keep one connection for the authenticated session
+                    }
+                    fillMissingMacs(keys);
+
+                    // the key was derived with an older function or a much lower cost than this device can afford,
+                    // derive it again in the background (the password is known only here), the re-encryption packs all the passwords.
+                    // on failure the current key stays valid, tried again on the next login
+                    if(params.isWeakerThan(SecurityHandler.getTargetParams()))
+                        this.async.rehashKey(keyPassword,secret).thenRun(this.async::migrateRecordFormat);
+                    else
+                        this.async.migrateRecordFormat(); // old format passwords are packed in the background
+                }
                 else
                     logOff();
 
@@ -288,19 +625,134 @@ public class InfoManager {
         // validate
         ValidationResult legal = validateLog(logName,userName,password);
         if (legal.equals(ValidationResult.Legal))
+            return addEncryptedRecord(logName,userName,encryptPassword(password));
+
+        return false;
+    }
+
+    /**
+     * Encrypt a given plain-text password with the user secret into the packed format (see SecurityHandler.encryptRecord), and calculate its mac.
+     * does not use the database, can be called from any thread after authentication.
+     * @param password - the plain-text password
+     * @return array with the packed encrypted password, no initial vector (null) and its mac (C.ENCRYPTED, C.IV, C.MAC), null if user did not authenticated or problem occur
+     */
+    public byte[][] encryptPassword(String password)
+    {
+        Keys keys = this.keys;
+        if(keys == null || password == null)
+            return null;
+
+        try
+        {
+            byte[][] cipher = new byte[3][];
+            cipher[C.ENCRYPTED] = SecurityHandler.encryptRecord(password,keys.secret);
+            cipher[C.MAC] = SecurityHandler.mac(password,keys.macKey);
+            return cipher;
+        }
+        catch (Exception e)
+        {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    /**
+     * Add a new Log information with an already encrypted password (see encryptPassword) to the db.
+     * adding can only be preformed if the user is authenticated and the log name is not used.
+     * @param logName - string, the name of the log
+     * @param userName - string, the user-name used in the log
+     * @param cipher - the encrypted password, its initial vector and its mac (C.ENCRYPTED, C.IV, C.MAC)
+     * @return true if a new log was added, false otherwise
+     */
+    public boolean addEncryptedRecord(String logName, String userName, byte[][] cipher)
+    {
+        if(!isAuthenticate() || cipher == null || logName == null || userName == null)
+            return false;
+
+        synchronized (this.lock)
+        {
+            if(logName.isEmpty() || userName.isEmpty() || getLogNames().contains(logName))
+                return false;
+
+            Set<String> names = this.state.copyNames();
+            names.add(logName);
+
+            if(this.queue != null && getRecordsPreview() != null)
+            {
+                int id = this.queue.insert(logName,userName,cipher);
+                LinkedHashMap<Integer, PreviewRecord> records = this.state.copyRecords();
+                records.put(id,new PreviewRecord(id,logName,userName,PreviewRecord.fingerprintOf(cipher[C.ENCRYPTED],cipher[C.IV]),LocalDate.now().toEpochDay()));
+                publish(this.state.withRecords(records,this.state.getVersion(),this.state.hasMore()).withNames(names));
+                return true;
+            }
+
+            boolean result = this.db.insertRecord(logName,userName,cipher[C.ENCRYPTED],cipher[C.IV],cipher[C.MAC]);
+            if (result)
+            {
+                this.state = this.state.withNames(names);
+                changed();
+            }
+
+            return result;
+        }
+    }
+
+    /**
+     * Add a batch of new Log information (validation -> encrypt -> add to db) from a given input, all or nothing.
+     * the arrays are corresponding by index, each index describes one log.
+     * adding can only be preformed if the user is authenticated.
+     * @param logNames - the names of the logs
+     * @param userNames - the user-names used in the logs
+     * @param passwords - the plain-text passwords used in the logs
+     * @return true if all the logs were added, false otherwise (nothing is added)
+     */
+    public boolean addRecords(String[] logNames, String[] userNames, String[] passwords)
+    {
+        if(!isAuthenticate() || logNames == null || userNames == null || passwords == null)
+            return false;
+
+        if(logNames.length != userNames.length || logNames.length != passwords.length)
+            return false;
+
+        synchronized (this.lock)
         {
-            if(!isAuthenticate())
+            Keys keys = this.keys; // not replaced while the lock is held
+            if(keys == null || !flushPending())
                 return false;
 
+            // validate, names must be unique in the database and in the batch
+            Set<String> names = new HashSet<>(getLogNames());
+            for(int i = 0; i < logNames.length; i++)
+            {
+                String name = logNames[i];
+                String userName = userNames[i];
+                String password = passwords[i];
+
+                if(name == null || userName == null || password == null || name.isEmpty() || userName.isEmpty() || password.isEmpty())
+                    return false;
+                if(!names.add(name))
+                    return false;
+            }
+
             try
             {
                 // encrypt
-                byte[] sIv = SecurityHandler.generateRandomBytes();
-                byte[] encrypted = SecurityHandler.encrypt(password,this.secret,sIv);
+                byte[][] encryptedList = new byte[passwords.length][];
+                byte[][] ivList = new byte[passwords.length][]; // packed passwords have no initial vector
+                byte[][] nonceList = SecurityHandler.generateIvs(passwords.length,C.NONCE_SIZE);
+                byte[][] macList = new byte[passwords.length][];
+                for(int i = 0; i < passwords.length; i++)
+                {
+                    encryptedList[i] = SecurityHandler.encryptRecord(passwords[i],keys.secret,nonceList[i]);
+                    macList[i] = SecurityHandler.mac(passwords[i],keys.macKey);
+                }
                 // add
-                boolean result = this.db.insertRecord(logName,userName,encrypted,sIv);
+                boolean result = this.db.insertRecords(logNames,userNames,encryptedList,ivList,macList);
                 if (result)
-                    this.listChanged = true;
+                {
+                    this.state = this.state.withNames(names);
+                    changed();
+                }
 
                 return result;
             }
@@ -314,9 +766,12 @@ public class InfoManager {
     }
 
     /**
-     * Returns all the logging data with preview only, after decrypting the information.
+     * Returns the logging data that was loaded so far (at least the first page) with preview only.
+     * the passwords are not fetched nor decrypted, use getPassword to get the password of a record.
+     * more records can be loaded with getNextRecordsPage.
+     * the list is an immutable snapshot, it does not change with later changes of the records and it is returned without locking unless the records have to be synced.
      * this method can be called only after authentication.
-     * @return List with decrypted records, null if user did not authenticated
+     * @return unmodifiable List with records, null if user did not authenticated
      */
     public List<PreviewRecord> getRecordsPreview()
     {
@@ -325,31 +780,241 @@ public class InfoManager {
 
         if(this.listChanged)
         {
-            try
+            synchronized (this.lock)
             {
-                List<PreviewRecord> updatedRecords = this.db.getAllRecords();
-
-                for(int i = 0; i < updatedRecords.size(); i++)
+                if(this.listChanged)
                 {
-                    PreviewRecord updated = updatedRecords.get(i);
-                    int oldIdx = this.records.indexOf(updated);
-                    if(oldIdx != -1)
-                        updatedRecords.set(i,this.records.get(oldIdx)); // for efficiency, decrypt operation only if new
-                    else
-                        updated.setPassword(this.secret);
-
+                    this.listChanged = false; // a change made while syncing sets it again
+                    try
+                    {
+                        if(this.state.getVersion() == -1)
+                            loadRecords();
+                        else
+                            applyChanges(this.db.getChangesSince(this.state.getVersion()));
+                    }
+                    catch (Exception e)
+                    {
+                        this.listChanged = true;
+                        e.printStackTrace();
+                    }
                 }
+            }
+        }
+
+        return this.state.getList();
+    }
 
-                this.records = updatedRecords;
-                this.listChanged = false;
+    /**
+     * Load the first page of the records, all the log names and the change version they are synced to.
+     * must be called while holding the lock.
+     */
+    private void loadRecords()
+    {
+        // the version is taken before the load, changes made during the load are applied again later
+        long loadVersion = this.db.getChangesVersion();
+        Iterator<List<PreviewRecord>> loadPages = this.db.getRecordPages(C.PAGE_SIZE);
+        Set<String> names = this.db.getLogNames();
+
+        LinkedHashMap<Integer, PreviewRecord> records = new LinkedHashMap<>();
+        for(PreviewRecord record : loadPages.next())
+            records.put(record.getId(),record);
+
+        this.flushedIds.clear(); // fetched again with their id
+        this.rejectedIds.clear(); // fetched again as they are in the DB
+        this.pages = loadPages;
+        publish(RecordSnapshot.EMPTY.withRecords(records,loadVersion,loadPages.hasNext()).withNames(names));
+    }
+
+    /**
+     * Apply the given changes of the records into a copy of the loaded records and publish it, only the changed records are fetched.
+     * inserted records are added only if all the pages are loaded, otherwise they will be fetched with the next pages.
+     * must be called while holding the lock.
+     * @param changes - the changes of the records since the current version
+     */
+    private void applyChanges(RecordChanges changes)
+    {
+        RecordSnapshot current = this.state;
+        LinkedHashMap<Integer, PreviewRecord> records = current.copyRecords();
+        WriteBehindQueue queue = this.queue;
+
+        // records whose deferred change was rejected are fetched again, a rejected insert is removed
+        Set<Integer> rejected = new HashSet<>(this.rejectedIds);
+        List<Integer> rejectedWritten = new ArrayList<>();
+        for(int id : rejected)
+        {
+            if(id < 0)
+            {
+                if(!this.flushedIds.containsKey(id)) // the insert was rejected too
+                    records.remove(id);
             }
-            catch (Exception e)
+            else if(records.containsKey(id) && (queue == null || !queue.isPending(id)))
+                rejectedWritten.add(id);
+        }
+        Set<String> names = current.getNames() == null ? null : current.copyNames(); // the names of the rejected renames are still used
+        for(PreviewRecord record : this.db.getRecords(rejectedWritten))
+        {
+            records.put(record.getId(),record);
+            if(names != null)
+                names.add(record.getLogName());
+        }
+
+        // written deferred inserts are fetched again with their id
+        Map<Integer, Integer> flushed = new HashMap<>(this.flushedIds);
+        List<Integer> written = new ArrayList<>();
+        for(Map.Entry<Integer, Integer> entry : flushed.entrySet())
+        {
+            if(records.remove(entry.getKey()) != null)
+                written.add(entry.getValue());
+        }
+
+        if(!changes.isEmpty())
+        {
+            // removed
+            for(int id : changes.getRemoved())
+                records.remove(id);
+            // updated, a cached password stays valid while the record fingerprint did not change
+            for(PreviewRecord record : this.db.getRecords(changes.getUpdated()))
             {
-                e.printStackTrace();
+                boolean pending = queue != null && queue.isPending(record.getId()); // newer in memory
+                if(!pending && records.containsKey(record.getId()))
+                    records.put(record.getId(),record);
+            }
+            // inserted
+            if(!this.pages.hasNext())
+            {
+                for(PreviewRecord record : this.db.getRecords(changes.getInserted()))
+                {
+                    if(!records.containsKey(record.getId()))
+                        records.put(record.getId(),record);
+                }
             }
         }
 
-        return this.records;
+        // written deferred inserts that were in the list stay in it, even if their page is not loaded yet
+        for(PreviewRecord record : this.db.getRecords(written))
+        {
+            if(!records.containsKey(record.getId()))
+                records.put(record.getId(),record);
+            if(names != null)
+                names.add(record.getLogName()); // as written, its rename may have been rejected
+        }
+
+        RecordSnapshot next = current.withRecords(records,changes.getVersion(),this.pages.hasNext());
+        publish(names == null ? next : next.withNames(names));
+        this.flushedIds.keySet().removeAll(flushed.keySet());
+        this.rejectedIds.removeAll(rejected);
+    }
+
+    /**
+     * Load the next page of the logging data with preview only.
+     * the page is added to the records returned by getRecordsPreview.
+     * this method can be called only after authentication.
+     * @return List with the records of the page (empty if no more records), null if user did not authenticated
+     */
+    public List<PreviewRecord> getNextRecordsPage()
+    {
+        if(getRecordsPreview() == null)
+            return null;
+
+        synchronized (this.lock)
+        {
+            List<PreviewRecord> page = new ArrayList<>();
+            if(this.pages == null || !this.pages.hasNext())
+                return page;
+
+            page = this.pages.next();
+            LinkedHashMap<Integer, PreviewRecord> records = this.state.copyRecords();
+            for(PreviewRecord record : page)
+                records.put(record.getId(),record);
+            publish(this.state.withRecords(records,this.state.getVersion(),this.pages.hasNext()));
+
+            return page;
+        }
+    }
+
+    /**
+     * Check if there are more records to load with getNextRecordsPage
+     * @return true if more records exists, false otherwise or if user did not authenticated
+     */
+    public boolean hasMoreRecords()
+    {
+        return getRecordsPreview() != null && this.state.hasMore();
+    }
+
+    /**
+     * Returns the plain-text password of a given record.
+     * the encrypted password is fetched and decrypted only when it is not in the password cache
+     * (bounded and time-expiring, cleared on log off).
+     * this method can be called only after authentication.
+     * @param record - the record to get its password
+     * @return the decrypted password, null if user did not authenticated or problem occur
+     */
+    public String getPassword(PreviewRecord record)
+    {
+        String password = getCachedPassword(record);
+        if(password != null)
+            return password;
+
+        return decryptPassword(record,getPasswordCipher(record));
+    }
+
+    /**
+     * Returns the plain-text password of a given record from the password cache, does not use the database or decrypt.
+     * @param record - the record to get its password
+     * @return the cached password, null if it is not cached or user did not authenticated
+     */
+    public String getCachedPassword(PreviewRecord record)
+    {
+        if(this.keys == null || record == null)
+            return null;
+
+        return this.passwords.get(resolve(record.getId()),record.getFingerprint());
+    }
+
+    /**
+     * Fetch the encrypted password of a given record, from the pending changes or the database (see decryptPassword).
+     * this method can be called only after authentication.
+     * @param record - the record to get its encrypted password
+     * @return array with the encrypted password and its initial vector (C.ENCRYPTED, C.IV), null if user did not authenticated or problem occur
+     */
+    public byte[][] getPasswordCipher(PreviewRecord record)
+    {
+        if(this.keys == null || record == null)
+            return null;
+
+        int id = resolve(record.getId());
+        WriteBehindQueue queue = this.queue;
+        byte[][] cipher = queue == null ? null : queue.getCipher(id);
+        if(cipher == null && id >= 0)
+            cipher = this.db.getRecordCipher(id);
+        return cipher;
+    }
+
+    /**
+     * Decrypt the encrypted password of a given record (see getPasswordCipher) and keep it in the password cache.
+     * does not use the database, can be called from any thread after authentication.
+     * @param record - the record of the password
+     * @param cipher - the encrypted password and its initial vector (C.ENCRYPTED, C.IV)
+     * @return the decrypted password, null if user did not authenticated or problem occur
+     */
+    public String decryptPassword(PreviewRecord record, byte[][] cipher)
+    {
+        Keys keys = this.keys;
+        if(keys == null || record == null || cipher == null)
+            return null;
+
+        try
+        {
+            String password = SecurityHandler.decryptRecord(cipher[C.ENCRYPTED],keys.secret,cipher[C.IV],keys.legacy);
+            this.passwords.put(resolve(record.getId()),PreviewRecord.fingerprintOf(cipher[C.ENCRYPTED],cipher[C.IV]),password);
+            return password;
+        }
+        catch (Exception e)
+        {
+            e.printStackTrace();
+        }
+
+        return null;
     }
 
     /**
@@ -363,11 +1028,37 @@ public class InfoManager {
         if(!isAuthenticate() || record == null)
             return false;
 
-        boolean result = this.db.deleteRecord(record.getId());
-        if (result)
-            this.listChanged = true;
+        synchronized (this.lock)
+        {
+            int id = resolve(record.getId());
+            boolean result;
+            if(this.queue != null && getRecordsPreview() != null)
+            {
+                this.queue.delete(id);
+                LinkedHashMap<Integer, PreviewRecord> records = this.state.copyRecords();
+                records.remove(record.getId());
+                records.remove(id);
+                publish(this.state.withRecords(records,this.state.getVersion(),this.state.hasMore()));
+                result = true;
+            }
+            else
+            {
+                result = this.db.deleteRecord(id);
+                if (result)
+                    changed();
+            }
 
-        return result;
+            if (result)
+            {
+                this.passwords.remove(id);
+                this.archives.remove(id);
+                Set<String> names = new HashSet<>(getLogNames());
+                names.remove(record.getLogName());
+                this.state = this.state.withNames(names);
+            }
+
+            return result;
+        }
     }
 
     /**
@@ -386,34 +1077,102 @@ public class InfoManager {
         ValidationResult legal = validateLogUpdate(record,logName,userName,password);
         if (legal.equals(ValidationResult.Legal) || legal.equals(ValidationResult.WarnExist))
         {
-            if(!isAuthenticate() || record == null || record.getPassword() == null)
+            String oldPassword = getPassword(record);
+            if(oldPassword == null)
                 return false;
 
-            String logNameNew = logName.equals(record.getLogName()) ? null : logName;
-            String userNameNew = userName.equals(record.getUserName()) ? null : userName;
-
             // check if password was updated
-            byte[] encrypted = null;
-            byte[] sIv = null;
-            if(!password.equals(record.getPassword()))
+            byte[][] cipher = null;
+            if(!password.equals(oldPassword))
+            {
+                cipher = encryptPassword(password);
+                if(cipher == null)
+                    return false;
+            }
+
+            return updateEncryptedRecord(record,logName,userName,password,cipher);
+        }
+
+        return false;
+    }
+
+    /**
+     * Update a given log-record information with an already encrypted password (see encryptPassword).
+     * if password was update also create archive of the old one and saved the new encrypted password.
+     * this operation can only be executed if the user has been authenticated
+     * @param record - the log record to be updated
+     * @param logName - the new log name
+     * @param userName - the new user name
+     * @param password - the new plain-txt password
+     * @param cipher - the encrypted new password, its initial vector and its mac (C.ENCRYPTED, C.IV, C.MAC), null if the password was not changed
+     * @return true if the information was updated successfully, false otherwise
+     */
+    public boolean updateEncryptedRecord(PreviewRecord record, String logName, String userName, String password, byte[][] cipher)
+    {
+        if(record == null || logName == null || userName == null || password == null)
+            return false;
+
+        String logNameNew = logName.equals(record.getLogName()) ? null : logName;
+        String userNameNew = userName.equals(record.getUserName()) ? null : userName;
+
+        try
+        {
+            synchronized (this.lock)
             {
-                try
+                Keys keys = this.keys;
+                if(keys == null)
+                    return false;
+                // the key was updated while encrypting, the mac of the password is keyed by the secret it was encrypted with
+                if(cipher != null && !MessageDigest.isEqual(cipher[C.MAC],SecurityHandler.mac(password,keys.macKey)))
+                    return false;
+
+                int id = resolve(record.getId());
+                boolean result;
+                if(this.queue != null && getRecordsPreview() != null)
                 {
-                    sIv = SecurityHandler.generateRandomBytes();
-                    encrypted = SecurityHandler.encrypt(password,this.secret,sIv);
+                    this.queue.update(id, logNameNew, userNameNew, cipher);
+
+                    long fingerprint = cipher == null ? record.getFingerprint() : PreviewRecord.fingerprintOf(cipher[C.ENCRYPTED],cipher[C.IV]);
+                    long date = cipher == null ? record.getDate() : LocalDate.now().toEpochDay();
+                    LinkedHashMap<Integer, PreviewRecord> records = this.state.copyRecords();
+                    if(id != record.getId())
+                        records.remove(record.getId());
+                    records.put(id,new PreviewRecord(id,logName,userName,fingerprint,date));
+                    publish(this.state.withRecords(records,this.state.getVersion(),this.state.hasMore()));
+                    result = true;
                 }
-                catch (Exception e)
+                else
                 {
-                    e.printStackTrace();
-                    return false;
+                    if(cipher == null)
+                        result = this.db.updateRecord(record, logNameNew, userNameNew, null, null, null);
+                    else
+                        result = this.db.updateRecord(record, logNameNew, userNameNew, cipher[C.ENCRYPTED], cipher[C.IV], cipher[C.MAC]);
+                    if (result)
+                        changed();
                 }
-            }
 
-            boolean result = this.db.updateRecord(record, logNameNew, userNameNew, encrypted, sIv);
-            if (result)
-                this.listChanged = true;
+                if (result)
+                {
+                    if(logNameNew != null)
+                    {
+                        Set<String> names = new HashSet<>(getLogNames());
+                        names.remove(record.getLogName());
+                        names.add(logNameNew);
+                        this.state = this.state.withNames(names);
+                    }
+                    if(cipher != null)
+                    {
+                        this.passwords.put(id,PreviewRecord.fingerprintOf(cipher[C.ENCRYPTED],cipher[C.IV]),password);
+                        this.archives.remove(id); // the old password was archived
+                    }
+                }
 
-            return result;
+                return result;
+            }
+        }
+        catch (Exception e)
+        {
+            e.printStackTrace();
         }
 
         return false;
@@ -421,23 +1180,35 @@ public class InfoManager {
 
     /**
      * Returns all the archive records of a given log-record (by id), after decrypting the information.
+     * the archives are fetched and decrypted only when they are not in the archive cache.
      * this method can be called only after authentication.
      * @param id - the id of the log-record to fetch its archives
-     * @return List of decrypted archive, null if user did not authenticated or problem occur
+     * @return unmodifiable List of decrypted archive, null if user did not authenticated or problem occur
      */
     public List<RecordArchive> getRecordArchive(int id)
     {
-        if(isAuthenticate())
+        Keys keys = this.keys;
+        if(keys != null)
         {
+            // a deferred password change adds an archive when written
+            WriteBehindQueue queue = this.queue;
+            if(queue != null && queue.isPending(id))
+                flushPending();
+            id = resolve(id);
+
+            List<RecordArchive> cached = this.archives.get(id);
+            if(cached != null)
+                return cached;
+
             try
             {
                 // fetch
                 List<RecordArchive> archives = this.db.getRecordArchives(id);
                 // decrypt
                 for(RecordArchive archive : archives)
-                    archive.setPassword(this.secret);
+                    archive.setPassword(keys.secret,keys.legacy);
 
-                return archives;
+                return this.archives.put(id,archives);
             }
             catch (Exception e)
             {
@@ -448,105 +1219,99 @@ public class InfoManager {
     }
 
     /**
-     * Return all the archives of all the records that are stored in the database, after decrypting the information.
-     * this method can be called only after authentication.
-     * @return List of decrypted archive, null if user did not authenticated or problem occur
+     * Update the user authentication key to the given one and generating new salt for it.
+     * the secret of the new key is derived with the key derivation function of new keys (see SecurityHandler.getTargetParams),
+     * and only a verifier of the secret is saved.
+     * in case a key already exists (not first time) Re-Encrypt all the Logging with the new one.
+     * @param key - the new authentication key
+     * @return true if the update was successful, false otherwise
      */
-    private List<RecordArchive> getAllRecordArchives()
+    public boolean updateKey(String key)
     {
-        if(!isAuthenticate())
-            return null;
-        try
-        {
-            List<RecordArchive> archives = this.db.getAllRecordArchives();
-
-            for(RecordArchive archive : archives) archive.setPassword(this.secret);
+        return updateKey(key,null);
+    }
 
-            return archives;
-        }
-        catch (Exception e)
-        {
-            e.printStackTrace();
-        }
-        return null;
+    /**
+     * Derive the secret of the current key again with the key derivation function of new keys, see authentication.
+     * the re-encryption is aborted if the key was changed (or the user logged off) since the login that started it,
+     * otherwise the old key would replace the new one.
+     * @param key - the current authentication key, as given on login
+     * @param loginSecret - the secret of the login that started the rehash
+     * @return true if the update was successful, false otherwise
+     */
+    boolean rehashKey(String key, SecretKey loginSecret)
+    {
+        return loginSecret != null && updateKey(key,loginSecret);
     }
 
     /**
-     * Update the user authentication key to the given one and generating new salt for it.
-     * in case a key already exists (not first time) Re-Encrypt all the Logging with the new one.
+     * Update the user authentication key, see updateKey
      * @param key - the new authentication key
+     * @param expectedSecret - the secret the records must still be encrypted with, null if any
      * @return true if the update was successful, false otherwise
      */
-    public boolean updateKey(String key)
+    private boolean updateKey(String key, SecretKey expectedSecret)
     {
         // validate
         ValidationResult legal = validateKey(key);
         if (legal.equals(ValidationResult.Legal))
         {
-            boolean firstTime = firstTime();
             try
             {
-                // hash the new key
+                if(expectedSecret != null && !isCurrentSecret(expectedSecret))
+                    return false;
+
+                // hash the new key, before locking since the derivation is slow on purpose (see C.KDF_TARGET_MILLIS)
                 byte[] kSalt = SecurityHandler.generateRandomBytes();
-                byte[] hashed = SecurityHandler.hash(key,kSalt);
+                KdfParams params = SecurityHandler.getTargetParams();
+                SecretKey secretNew = SecurityHandler.deriveKey(key,kSalt,params);
+                byte[] hashed = SecurityHandler.getVerifier(secretNew);
+                SecretKey macKeyNew = SecurityHandler.getMacKey(secretNew);
 
-                if(firstTime)
-                    return this.db.updateKey(hashed,kSalt);
-                else if(isAuthenticate())
+                // no record is changed while the passwords are re-encrypted
+                synchronized (this.lock)
                 {
-                    boolean stop = false;
-                    SecretKey secretNew = SecurityHandler.getKeyFromPassword(key,kSalt);
+                    if(expectedSecret != null && !isCurrentSecret(expectedSecret)) // changed while deriving
+                        return false;
 
-                    int[] recordIdList = new int[this.records.size()];
-                    byte[][] encryptedRecordList = new byte[this.records.size()][];
-                    byte[][] ivRecordList = new byte[this.records.size()][];
+                    boolean firstTime = firstTime();
+                    if(!flushPending()) // the deferred changes are re-encrypted with all the records
+                        return false;
 
-                    for(int i = 0; !stop && i < this.records.size(); i++)
+                    if(firstTime)
+                        return this.db.updateKey(hashed,kSalt,params);
+                    else if(this.keys != null)
                     {
-                        String password = this.records.get(i).getPassword();
-                        if(password == null)
-                        {
-                            stop = true;
-                            break;
-                        }
-
-                        byte[] iv = SecurityHandler.generateRandomBytes();
-                        byte[] encrypted = SecurityHandler.encrypt(password,secretNew,iv);
-
-                        recordIdList[i] = this.records.get(i).getId();
-                        encryptedRecordList[i] = encrypted;
-                        ivRecordList[i] = iv;
-                    }
-
-                    List<RecordArchive> archives = getAllRecordArchives();
-                    int[] archiveIdList = new int[archives.size()];
-                    byte[][] encryptedArchiveList = new byte[archives.size()][];
-                    byte[][] ivArchiveList = new byte[archives.size()][];
-
-                    for(int i = 0; !stop && i < archives.size(); i++)
-                    {
-                        String password = archives.get(i).getPassword();
-                        if(password == null)
-                        {
-                            stop = true;
-                            break;
-                        }
-
-                        byte[] iv = SecurityHandler.generateRandomBytes();
-                        byte[] encrypted = SecurityHandler.encrypt(password,secretNew,iv);
-
-                        archiveIdList[i] = archives.get(i).getId();
-                        encryptedArchiveList[i] = encrypted;
-                        ivArchiveList[i] = iv;
-                    }
-
-                    if(!stop)
-                    {
-                        boolean res = this.db.updatePasswordsInDB(hashed, kSalt, recordIdList, encryptedRecordList,ivRecordList,archiveIdList,encryptedArchiveList,ivArchiveList);
+                        SecretKey secret = this.keys.secret;
+                        boolean legacy = this.keys.legacy;
+
+                        // fetch all the encrypted passwords
+                        Map<Integer, byte[][]> recordCiphers = this.db.getRecordCiphers(-1);
+                        int[] recordIdList = new int[recordCiphers.size()];
+                        byte[][] encryptedRecordList = new byte[recordCiphers.size()][];
+                        byte[][] ivRecordList = new byte[recordCiphers.size()][];
+                        byte[][] macRecordList = new byte[recordCiphers.size()][];
+                        unpackCiphers(recordCiphers,recordIdList,encryptedRecordList,ivRecordList);
+
+                        Map<Integer, byte[][]> archiveCiphers = this.db.getArchiveCiphers();
+                        int[] archiveIdList = new int[archiveCiphers.size()];
+                        byte[][] encryptedArchiveList = new byte[archiveCiphers.size()][];
+                        byte[][] ivArchiveList = new byte[archiveCiphers.size()][];
+                        byte[][] macArchiveList = new byte[archiveCiphers.size()][];
+                        unpackCiphers(archiveCiphers,archiveIdList,encryptedArchiveList,ivArchiveList);
+
+                        // re-encrypt (and rebuild the macs) in parallel, results are written in place of the old ones
+                        ForkJoinPool pool = ForkJoinPool.commonPool();
+                        pool.invoke(new ReKeyTask(secret,legacy,secretNew,macKeyNew,encryptedRecordList,ivRecordList,encryptedRecordList,ivRecordList,macRecordList));
+                        pool.invoke(new ReKeyTask(secret,legacy,secretNew,macKeyNew,encryptedArchiveList,ivArchiveList,encryptedArchiveList,ivArchiveList,macArchiveList));
+
+                        boolean res = this.db.updatePasswordsInDB(hashed, kSalt, params, recordIdList, encryptedRecordList,ivRecordList,macRecordList,archiveIdList,encryptedArchiveList,ivArchiveList,macArchiveList);
                         // update secret to the new one
                         if(res)
                         {
-                            this.secret = secretNew;
+                            this.keys = new Keys(secretNew,macKeyNew,false); // all the passwords are packed
+                            clearDecrypted();
+                            changed(); // the fingerprints of all the records changed
                         }
 
                         return res;
@@ -561,4 +1326,172 @@ public class InfoManager {
 
         return false;
     }
+
+    /**
+     * Check if the records are encrypted with a given secret
+     * @param secret - the secret to check
+     * @return true if the user is authenticated with this secret, false otherwise
+     */
+    private boolean isCurrentSecret(SecretKey secret)
+    {
+        Keys keys = this.keys;
+        return keys != null && keys.secret == secret;
+    }
+
+    /**
+     * Convert the passwords that are still in the old format (AES/CBC with an initial vector saved apart) to the packed format
+     * (see SecurityHandler.encryptRecord), chunk after chunk (see C.FORMAT_CHUNK_SIZE) so the records are never locked for long.
+     * the plain-text passwords are not changed, so their macs stay valid.
+     * stops if the key is updated (all the passwords are packed by the re-encryption) or the user logs off meanwhile.
+     * once no password is left in the old format the key is marked as packed, and the old format is rejected from then on.
+     * @return true if no password is left in the old format, false otherwise
+     */
+    public boolean migrateRecordFormat()
+    {
+        Keys keys = this.keys;
+        if(keys == null)
+            return false;
+        if(!keys.legacy)
+            return true;
+
+        try
+        {
+            while (true)
+            {
+                Map<Integer, byte[][]> recordCiphers = this.db.getRecordCiphersUnpacked(C.FORMAT_CHUNK_SIZE);
+                Map<Integer, byte[][]> archiveCiphers = this.db.getArchiveCiphersUnpacked(C.FORMAT_CHUNK_SIZE);
+                if(recordCiphers.isEmpty() && archiveCiphers.isEmpty())
+                {
+                    synchronized (this.lock)
+                    {
+                        if(this.keys != keys || !this.db.setKeyRecordFormatPacked())
+                            return false;
+                        this.keys = new Keys(keys.secret,keys.macKey,false);
+                        return true;
+                    }
+                }
+
+                // decrypt and pack without the lock, the rows that changed meanwhile are not replaced (see SQLHandler.packPasswords)
+                int[] recordIdList = new int[recordCiphers.size()];
+                byte[][] ivRecordList = new byte[recordCiphers.size()][];
+                byte[][] packedRecordList = packCiphers(recordCiphers,recordIdList,ivRecordList,keys);
+
+                int[] archiveIdList = new int[archiveCiphers.size()];
+                byte[][] ivArchiveList = new byte[archiveCiphers.size()][];
+                byte[][] packedArchiveList = packCiphers(archiveCiphers,archiveIdList,ivArchiveList,keys);
+
+                synchronized (this.lock)
+                {
+                    if(this.keys != keys) // the key was updated (or logged off) while packing
+                        return false;
+                    if(!this.db.packPasswords(recordIdList,ivRecordList,packedRecordList,archiveIdList,ivArchiveList,packedArchiveList))
+                        return false;
+                    changed(); // the fingerprints of the packed records changed
+
+                    // the plain-text passwords did not change, the cached ones are moved to the packed passwords
+                    for(int i = 0; i < recordIdList.length; i++)
+                        this.passwords.refingerprint(recordIdList[i],PreviewRecord.fingerprintOf(ivRecordList[i]),PreviewRecord.fingerprintOf(packedRecordList[i],null));
+                }
+            }
+        }
+        catch (Exception e)
+        {
+            e.printStackTrace();
+        }
+
+        return false;
+    }
+
+    /**
+     * Decrypt the given old format passwords and encrypt them again into the packed format
+     * @param ciphers - map between id and its encrypted password and initial vector (C.ENCRYPTED, C.IV)
+     * @param idList - output, the ids corresponding by index to the returned passwords
+     * @param ivList - output, the initial vector each password was encrypted with
+     * @param keys - the secret the passwords are encrypted with
+     * @return the packed password of each id
+     * @throws Exception - when decrypting
+     */
+    private static byte[][] packCiphers(Map<Integer, byte[][]> ciphers, int[] idList, byte[][] ivList, Keys keys) throws Exception
+    {
+        byte[][] encryptedList = new byte[ciphers.size()][];
+        unpackCiphers(ciphers,idList,encryptedList,ivList);
+
+        byte[][] nonceList = SecurityHandler.generateIvs(ciphers.size(),C.NONCE_SIZE);
+        for(int i = 0; i < encryptedList.length; i++)
+        {
+            String password = SecurityHandler.decryptRecord(encryptedList[i],keys.secret,ivList[i],keys.legacy);
+            encryptedList[i] = SecurityHandler.encryptRecord(password,keys.secret,nonceList[i]);
+        }
+        return encryptedList;
+    }
+
+    /**
+     * Calculate and save the mac of the records and archives that have none (saved before macs were stored).
+     * called after authentication, a failure only leaves the macs missing until the next login.
+     * @param keys - the keys of the session
+     */
+    private void fillMissingMacs(Keys keys)
+    {
+        try
+        {
+            Map<Integer, byte[][]> recordCiphers = this.db.getRecordCiphersWithoutMac();
+            Map<Integer, byte[][]> archiveCiphers = this.db.getArchiveCiphersWithoutMac();
+            if(recordCiphers.isEmpty() && archiveCiphers.isEmpty())
+                return;
+
+            int[] recordIdList = new int[recordCiphers.size()];
+            byte[][] macRecordList = macsOf(recordCiphers,recordIdList,keys);
+            int[] archiveIdList = new int[archiveCiphers.size()];
+            byte[][] macArchiveList = macsOf(archiveCiphers,archiveIdList,keys);
+
+            this.db.updateMacs(recordIdList,macRecordList,archiveIdList,macArchiveList);
+        }
+        catch (Exception e)
+        {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Decrypt the given encrypted passwords and calculate their macs
+     * @param ciphers - map between id and its encrypted password and initial vector (C.ENCRYPTED, C.IV)
+     * @param idList - output, the ids corresponding by index to the returned macs
+     * @param keys - the secret the passwords are encrypted with and the mac key
+     * @return the mac of each password
+     * @throws Exception - when decrypting
+     */
+    private byte[][] macsOf(Map<Integer, byte[][]> ciphers, int[] idList, Keys keys) throws Exception
+    {
+        byte[][] macList = new byte[ciphers.size()][];
+        Mac mac = SecurityHandler.newMac(keys.macKey);
+
+        int i = 0;
+        for(Map.Entry<Integer, byte[][]> entry : ciphers.entrySet())
+        {
+            String password = SecurityHandler.decryptRecord(entry.getValue()[C.ENCRYPTED],keys.secret,entry.getValue()[C.IV],keys.legacy);
+            idList[i] = entry.getKey();
+            macList[i] = SecurityHandler.mac(mac,password);
+            i++;
+        }
+        return macList;
+    }
+
+    /**
+     * Split a map of encrypted passwords (see SQLHandler.getRecordCiphers) into parallel arrays
+     * @param ciphers - map between id and its encrypted password and initial vector (C.ENCRYPTED, C.IV)
+     * @param idList - output, the ids
+     * @param encryptedList - output, the encrypted passwords
+     * @param ivList - output, the initial vectors (null for a packed password)
+     */
+    private static void unpackCiphers(Map<Integer, byte[][]> ciphers, int[] idList, byte[][] encryptedList, byte[][] ivList)
+    {
+        int i = 0;
+        for(Map.Entry<Integer, byte[][]> entry : ciphers.entrySet())
+        {
+            idList[i] = entry.getKey();
+            encryptedList[i] = entry.getValue()[C.ENCRYPTED];
+            ivList[i] = entry.getValue()[C.IV];
+            i++;
+        }
+    }
 }
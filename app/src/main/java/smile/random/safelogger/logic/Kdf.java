@@ -0,0 +1,24 @@
+package smile.random.safelogger.logic;
+
+import java.security.GeneralSecurityException;
+
+import javax.crypto.SecretKey;
+
+import smile.random.safelogger.logic.models.KdfParams;
+
+/**
+ * Author : Assaf Attias
+ * A key derivation function, derives the secret of the user from the authentication key (see SecurityHandler.getKdf).
+ */
+public interface Kdf
+{
+    /**
+     * Derive a secret key from a given password and salt
+     * @param password - plain txt password to derive the key from
+     * @param salt - salt of the key
+     * @param params - the parameters of the derivation (cost etc.)
+     * @return the derived secret key (C.KEY_LEN bits)
+     * @throws GeneralSecurityException
+     */
+    SecretKey deriveKey(String password, byte[] salt, KdfParams params) throws GeneralSecurityException;
+}
@@ -0,0 +1,149 @@
+package smile.random.safelogger.logic;
+
+import android.os.SystemClock;
+import android.util.LruCache;
+
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Author : Assaf Attias
+ * A size-bounded cache of decrypted record passwords (least recently used are evicted),
+ * each password expires after a given time since it was decrypted and is removed from memory when it expires (even if it is not read again).
+ */
+public class PasswordCache
+{
+    /**
+     * a cached plain-text password and the encrypted version it was decrypted from
+     */
+    private static class Entry
+    {
+        private final long fingerprint;
+        private final String password;
+        private final long expires;
+
+        private Entry(long fingerprint, String password, long expires)
+        {
+            this.fingerprint = fingerprint;
+            this.password = password;
+            this.expires = expires;
+        }
+    }
+
+    private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(runnable -> new Thread(runnable,"PasswordCache-purge"));
+
+    private final LruCache<Integer, Entry> cache;
+    private final long ttl;
+    private boolean scheduled = false;
+
+    /**
+     * Constructor
+     * @param maxSize - the max number of passwords to hold
+     * @param ttl - the time (milliseconds) a password is kept after it was added
+     */
+    public PasswordCache(int maxSize, long ttl)
+    {
+        this.cache = new LruCache<>(maxSize);
+        this.ttl = ttl;
+    }
+
+    /**
+     * Get the cached password of a given record
+     * @param id - the id of the record
+     * @param fingerprint - the fingerprint of the current encrypted password of the record
+     * @return the plain-text password, null if not cached, expired or cached from another encrypted password
+     */
+    public synchronized String get(int id, long fingerprint)
+    {
+        Entry entry = this.cache.get(id);
+        if(entry == null)
+            return null;
+
+        if(entry.fingerprint != fingerprint || entry.expires <= SystemClock.elapsedRealtime())
+        {
+            this.cache.remove(id);
+            return null;
+        }
+
+        return entry.password;
+    }
+
+    /**
+     * Add the password of a given record to the cache
+     * @param id - the id of the record
+     * @param fingerprint - the fingerprint of the encrypted password the plain-text was decrypted from
+     * @param password - the plain-text password
+     */
+    public synchronized void put(int id, long fingerprint, String password)
+    {
+        this.cache.put(id, new Entry(fingerprint, password, SystemClock.elapsedRealtime() + this.ttl));
+        schedulePurge(this.ttl);
+    }
+
+    /**
+     * Move the cached password of a given record to a new encrypted version of the same plain-text (re-encryption),
+     * only if it was cached from the old encrypted version. the expiry time is not changed.
+     * @param id - the id of the record
+     * @param fingerprint - the fingerprint of the old encrypted password
+     * @param newFingerprint - the fingerprint of the new encrypted password
+     */
+    public synchronized void refingerprint(int id, long fingerprint, long newFingerprint)
+    {
+        Entry entry = this.cache.get(id);
+        if(entry != null && entry.fingerprint == fingerprint)
+            this.cache.put(id, new Entry(newFingerprint, entry.password, entry.expires));
+    }
+
+    /**
+     * Remove the password of a given record from the cache
+     * @param id - the id of the record
+     */
+    public synchronized void remove(int id)
+    {
+        this.cache.remove(id);
+    }
+
+    /**
+     * Remove all the passwords from the cache
+     */
+    public synchronized void clear()
+    {
+        this.cache.evictAll();
+    }
+
+    /**
+     * Remove the expired passwords and schedule the next purge to the time the first remaining password expires
+     */
+    private synchronized void purge()
+    {
+        this.scheduled = false;
+
+        long now = SystemClock.elapsedRealtime();
+        long next = Long.MAX_VALUE;
+        for(Map.Entry<Integer, Entry> entry : this.cache.snapshot().entrySet())
+        {
+            if(entry.getValue().expires <= now)
+                this.cache.remove(entry.getKey());
+            else
+                next = Math.min(next, entry.getValue().expires);
+        }
+
+        if(next != Long.MAX_VALUE)
+            schedulePurge(next - now);
+    }
+
+    /**
+     * Schedule a purge of the expired passwords, if none is scheduled (a scheduled purge schedules the next one)
+     * @param delay - the time (milliseconds) until the purge
+     */
+    private void schedulePurge(long delay)
+    {
+        if(this.scheduled)
+            return;
+
+        timer.schedule(this::purge, delay, TimeUnit.MILLISECONDS);
+        this.scheduled = true;
+    }
+}
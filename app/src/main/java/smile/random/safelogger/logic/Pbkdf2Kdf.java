@@ -0,0 +1,20 @@
+package smile.random.safelogger.logic;
+
+import java.security.GeneralSecurityException;
+
+import javax.crypto.SecretKey;
+
+import smile.random.safelogger.logic.models.KdfParams;
+
+/**
+ * Author : Assaf Attias
+ * PBKDF2 key derivation (C.ENC_KEY_ALGORITHM), the cost is the number of iterations (see SecurityHandler.getTargetIterations).
+ */
+public class Pbkdf2Kdf implements Kdf
+{
+    @Override
+    public SecretKey deriveKey(String password, byte[] salt, KdfParams params) throws GeneralSecurityException
+    {
+        return SecurityHandler.getKeyFromPassword(password, salt, params.getCost());
+    }
+}
@@ -0,0 +1,103 @@
+package smile.random.safelogger.logic;
+
+import java.util.concurrent.RecursiveAction;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+
+/**
+ * Author : Assaf Attias
+ * Re-encrypt a range of encrypted passwords (in any format) from an old secret to a new one in the packed format
+ * with a new nonce for each (see SecurityHandler.encryptRecord), and calculate the mac of each password with the new mac key.
+ * the range is split across the fork-join pool until it is small enough (see C.REKEY_TASK_SIZE),
+ * each worker task uses its own mac instance and the cipher instances of its thread for all of its passwords.
+ */
+public class ReKeyTask extends RecursiveAction
+{
+    private static final long serialVersionUID = 1L;
+
+    private final SecretKey oldKey;
+    private final boolean legacy;
+    private final SecretKey newKey;
+    private final SecretKey newMacKey;
+
+    private final byte[][] encryptedList;
+    private final byte[][] ivList;
+    private final byte[][] encryptedNewList;
+    private final byte[][] ivNewList;
+    private final byte[][] macNewList;
+
+    private final int from;
+    private final int to;
+
+    /**
+     * Constructor, re-encrypt all the given passwords
+     * @param oldKey - the secret the passwords are currently encrypted with
+     * @param legacy - true if passwords in the old format are accepted (see SecurityHandler.decryptRecord)
+     * @param newKey - the secret to encrypt the passwords with
+     * @param newMacKey - the mac key of the new secret (see SecurityHandler.getMacKey)
+     * @param encryptedList - the encrypted passwords
+     * @param ivList - the initial vectors the passwords are currently encrypted with (parallel to encryptedList, null for a packed password)
+     * @param encryptedNewList - output, the packed passwords encrypted with the new secret (same length as encryptedList)
+     * @param ivNewList - output, the new initial vectors, all null (same length as encryptedList)
+     * @param macNewList - output, the macs of the passwords with the new mac key (same length as encryptedList)
+     */
+    public ReKeyTask(SecretKey oldKey, boolean legacy, SecretKey newKey, SecretKey newMacKey, byte[][] encryptedList, byte[][] ivList, byte[][] encryptedNewList, byte[][] ivNewList, byte[][] macNewList)
+    {
+        this(oldKey, legacy, newKey, newMacKey, encryptedList, ivList, encryptedNewList, ivNewList, macNewList, 0, encryptedList.length);
+    }
+
+    private ReKeyTask(SecretKey oldKey, boolean legacy, SecretKey newKey, SecretKey newMacKey, byte[][] encryptedList, byte[][] ivList, byte[][] encryptedNewList, byte[][] ivNewList, byte[][] macNewList, int from, int to)
+    {
+        this.oldKey = oldKey;
+        this.legacy = legacy;
+        this.newKey = newKey;
+        this.newMacKey = newMacKey;
+        this.encryptedList = encryptedList;
+        this.ivList = ivList;
+        this.encryptedNewList = encryptedNewList;
+        this.ivNewList = ivNewList;
+        this.macNewList = macNewList;
+        this.from = from;
+        this.to = to;
+    }
+
+    @Override
+    protected void compute()
+    {
+        if(to - from <= C.REKEY_TASK_SIZE)
+        {
+            reKey();
+            return;
+        }
+
+        int middle = (from + to) >>> 1;
+        invokeAll(new ReKeyTask(oldKey, legacy, newKey, newMacKey, encryptedList, ivList, encryptedNewList, ivNewList, macNewList, from, middle),
+                  new ReKeyTask(oldKey, legacy, newKey, newMacKey, encryptedList, ivList, encryptedNewList, ivNewList, macNewList, middle, to));
+    }
+
+    /**
+     * Re-encrypt the passwords of this task range
+     */
+    private void reKey()
+    {
+        try
+        {
+            Mac mac = SecurityHandler.newMac(newMacKey);
+            byte[][] nonces = SecurityHandler.generateIvs(to - from, C.NONCE_SIZE);
+            for(int i = from; i < to; i++)
+            {
+                String password = SecurityHandler.decryptRecord(encryptedList[i], oldKey, ivList[i], legacy);
+
+                encryptedNewList[i] = SecurityHandler.encryptRecord(password, newKey, nonces[i - from]);
+                ivNewList[i] = null;
+                macNewList[i] = SecurityHandler.mac(mac, password);
+            }
+        }
+        catch (Exception e)
+        {
+            // fails the whole pipeline, see ForkJoinPool.invoke
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package smile.random.safelogger.logic;
+
+import java.util.List;
+
+import smile.random.safelogger.logic.models.PreviewRecord;
+
+/**
+ * Author : Assaf Attias
+ * Listener of the changes of the loaded records (see InfoManager.addRecordListener).
+ * it is called on the thread that made the change while the InfoManager is locked,
+ * so it must not block nor call the InfoManager, post the change to the main thread instead (Handler.post on the main looper,
+ * Activity.runOnUiThread runs it right away when the change is made on the main thread).
+ * the first call after the listener is added has all the loaded records as inserted.
+ */
+public interface RecordListener
+{
+    /**
+     * Called after the loaded records were changed, only the changed records are given
+     * @param inserted - records that were added to the loaded records (new records and loaded pages)
+     * @param updated - records that were changed, replace the record with the same id
+     * @param removed - ids of the records that were removed from the loaded records
+     */
+    void onRecordsChanged(List<PreviewRecord> inserted, List<PreviewRecord> updated, List<Integer> removed);
+}
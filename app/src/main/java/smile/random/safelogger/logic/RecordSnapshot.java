@@ -0,0 +1,117 @@
+package smile.random.safelogger.logic;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import smile.random.safelogger.logic.models.PreviewRecord;
+
+/**
+ * Author : Assaf Attias
+ * Immutable state of the loaded records, the log names index and the change version they are synced to.
+ * a snapshot is never changed, a change copies it (copy-on-write) and the InfoManager publishes the copy as a whole,
+ * so a reader of a snapshot never locks and never sees a half applied change.
+ */
+public final class RecordSnapshot
+{
+    public static final RecordSnapshot EMPTY = new RecordSnapshot(Collections.emptyMap(), Collections.emptyList(), null, -1, false);
+
+    private final Map<Integer, PreviewRecord> records; // loaded records by id, ordered by id
+    private final List<PreviewRecord> list; // the loaded records in order
+    private final Set<String> names; // all the log names (not only the loaded records), null if not loaded
+    private final long version; // change version the records are synced to, -1 if not loaded
+    private final boolean hasMore; // are there more pages of records to load
+
+    private RecordSnapshot(Map<Integer, PreviewRecord> records, List<PreviewRecord> list, Set<String> names, long version, boolean hasMore)
+    {
+        this.records = records;
+        this.list = list;
+        this.names = names;
+        this.version = version;
+        this.hasMore = hasMore;
+    }
+
+    /**
+     * Create a snapshot with other records
+     * @param records - the loaded records by id, owned by the snapshot (must not be changed after)
+     * @param version - the change version the records are synced to
+     * @param hasMore - are there more pages of records to load
+     * @return a new snapshot with the given records and the log names of this snapshot
+     */
+    public RecordSnapshot withRecords(LinkedHashMap<Integer, PreviewRecord> records, long version, boolean hasMore)
+    {
+        return new RecordSnapshot(Collections.unmodifiableMap(records), Collections.unmodifiableList(new ArrayList<>(records.values())), this.names, version, hasMore);
+    }
+
+    /**
+     * Create a snapshot with other log names
+     * @param names - all the log names, owned by the snapshot (must not be changed after)
+     * @return a new snapshot with the given log names and the records of this snapshot
+     */
+    public RecordSnapshot withNames(Set<String> names)
+    {
+        return new RecordSnapshot(this.records, this.list, Collections.unmodifiableSet(names), this.version, this.hasMore);
+    }
+
+    /**
+     * Get a modifiable copy of the loaded records
+     * @return new map of the loaded records by id, ordered by id
+     */
+    public LinkedHashMap<Integer, PreviewRecord> copyRecords()
+    {
+        return new LinkedHashMap<>(this.records);
+    }
+
+    /**
+     * Get a modifiable copy of the log names
+     * @return new set of the log names, empty if not loaded
+     */
+    public Set<String> copyNames()
+    {
+        return this.names == null ? new HashSet<>() : new HashSet<>(this.names);
+    }
+
+    /**
+     * Get the loaded records
+     * @return unmodifiable map of the loaded records by id
+     */
+    public Map<Integer, PreviewRecord> getRecords() {
+        return records;
+    }
+
+    /**
+     * Get the loaded records in order
+     * @return unmodifiable list of the loaded records
+     */
+    public List<PreviewRecord> getList() {
+        return list;
+    }
+
+    /**
+     * Get all the log names
+     * @return unmodifiable set of the log names, null if not loaded
+     */
+    public Set<String> getNames() {
+        return names;
+    }
+
+    /**
+     * Get the change version the records are synced to
+     * @return the version, -1 if the records are not loaded
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Check if there are more pages of records to load
+     * @return true if more records exists, false otherwise
+     */
+    public boolean hasMore() {
+        return hasMore;
+    }
+}
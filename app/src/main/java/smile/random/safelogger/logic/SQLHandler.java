@@ -3,17 +3,35 @@ package smile.random.safelogger.logic;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.DatabaseUtils;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteConstraintException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteStatement;
+import android.text.TextUtils;
+import android.util.Log;
+import android.util.LruCache;
 
+import java.time.LocalDate;
 import java.util.ArrayList;
-import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.TimeZone;
-
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import smile.random.safelogger.logic.models.KdfParams;
 import smile.random.safelogger.logic.models.PreviewRecord;
 import smile.random.safelogger.logic.models.RecordArchive;
+import smile.random.safelogger.logic.models.RecordChanges;
+import smile.random.safelogger.logic.models.RecordMutation;
+import smile.random.safelogger.logic.models.StoredKey;
 
 /**
  * Author : Assaf Attias
@@ -49,32 +67,315 @@ public class SQLHandler extends SQLiteOpenHelper {
             "iv BLOB, " +
             "CONSTRAINT FK_log FOREIGN KEY (logId) REFERENCES LOGGER(id) ON DELETE CASCADE)";
 
+    // a new key has only packed passwords (no passwords yet, or all of them re-encrypted with it)
+    private final String SQL_INSERT_KEY = "INSERT INTO PASSKEYS(salt,hashPassword,kdf,iterations,blockSize,parallelism,recordFormat) " +
+            "VALUES(?,?,?,?,?,?," + C.RECORD_FORMAT_GCM + ")";
+    private final String SQL_INSERT_RECORD = "INSERT INTO LOGGER(logName,userName,password,iv,mac,date) VALUES(?,?,?,?,?,?)";
+    // the bytes of the password fingerprint (see PreviewRecord.fingerprintOf): the initial vector of an old format password, the nonce of a packed one
+    // log names were not unique before schema version 2, the later rows of a duplicate name are renamed to "name (id)" before the unique index
+    private final String SQL_UNIQUE_LOG_NAME = "CREATE UNIQUE INDEX IF NOT EXISTS IDX_LOGGER_logName ON LOGGER(logName)";
+    private final String SQL_RENAME_DUPLICATE_LOG_NAMES = "UPDATE LOGGER SET logName = logName || ' (' || id || ')' " +
+            "WHERE id NOT IN (SELECT MIN(id) FROM LOGGER GROUP BY logName)";
+    private final String SQL_FINGERPRINT = "COALESCE(iv,substr(password," + (C.RECORD_HEADER_SIZE + 1) + ",8))";
+
+    // all the writes are serialized on a single thread, so long transactions do not block the callers of the readers.
+    // shared by all the instances, a new handler is created on every app start (see InfoManager.initialize)
+    // and the writes of all of them must be serialized on the same thread
+    private static volatile Thread writerThread = null;
+    private static final ExecutorService writer = Executors.newSingleThreadExecutor(runnable -> {
+        writerThread = new Thread(runnable,"SQLHandler-writer");
+        return writerThread;
+    });
+
+    private SQLiteDatabase session = null;
+    private int openCount = 0;
+    private int closeCount = 0;
+
+    // compiled statements of the session connection, closed when evicted or when the session ends.
+    // used only by the writer thread, since a statement holds its bindings and can not be shared between threads
+    private final LruCache<String, SQLiteStatement> statements = new LruCache<String, SQLiteStatement>(C.STATEMENT_CACHE_SIZE)
+    {
+        @Override
+        protected void entryRemoved(boolean evicted, String sql, SQLiteStatement oldValue, SQLiteStatement newValue)
+        {
+            oldValue.close();
+        }
+    };
+
+    // schema migrations, the entry at index i upgrades the schema from version i to version i + 1
+    private final String[][] MIGRATIONS = {
+            { TABLE_KEY, TABLE_LOG, TABLE_ARCHIVE },
+            { SQL_UNIQUE_LOG_NAME,
+              "CREATE INDEX IF NOT EXISTS IDX_ARCHIVE_logId ON ARCHIVE(logId, id DESC)" },
+            { // dates as epoch-day, tables are rebuilt since columns can not be dropped
+              "CREATE TABLE LOGGER_V3(" +
+                      "id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                      "logName VARCHAR, " +
+                      "userName VARCHAR, " +
+                      "password BLOB, " +
+                      "iv BLOB, " +
+                      "date INTEGER)",
+              "INSERT INTO LOGGER_V3(id,logName,userName,password,iv,date) " +
+                      "SELECT id,logName,userName,password,iv," + epochDaySql("day","month","year") + " FROM LOGGER",
+              "DROP TABLE LOGGER",
+              "ALTER TABLE LOGGER_V3 RENAME TO LOGGER",
+              SQL_UNIQUE_LOG_NAME,
+              "CREATE TABLE ARCHIVE_V3(" +
+                      "id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                      "logId INTEGER, " +
+                      "startDate INTEGER, " +
+                      "endDate INTEGER, " +
+                      "password BLOB, " +
+                      "iv BLOB, " +
+                      "CONSTRAINT FK_log FOREIGN KEY (logId) REFERENCES LOGGER(id) ON DELETE CASCADE)",
+              "INSERT INTO ARCHIVE_V3(id,logId,startDate,endDate,password,iv) " +
+                      "SELECT id,logId," + epochDaySql("startDay","startMonth","startYear") + "," +
+                      epochDaySql("endDay","endMonth","endYear") + ",password,iv FROM ARCHIVE",
+              "DROP TABLE ARCHIVE",
+              "ALTER TABLE ARCHIVE_V3 RENAME TO ARCHIVE",
+              "CREATE INDEX IF NOT EXISTS IDX_ARCHIVE_logId ON ARCHIVE(logId, id DESC)" },
+            { // change log of the LOGGER rows, re-encryption (password,iv only) is not a visible change
+              "CREATE TABLE CHANGES(" +
+                      "version INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                      "logId INTEGER, " +
+                      "op INTEGER)",
+              "CREATE TRIGGER TRG_LOGGER_insert AFTER INSERT ON LOGGER " +
+                      "BEGIN INSERT INTO CHANGES(logId,op) VALUES(NEW.id," + C.CHANGE_INSERT + "); END",
+              "CREATE TRIGGER TRG_LOGGER_update AFTER UPDATE OF logName,userName,date ON LOGGER " +
+                      "BEGIN INSERT INTO CHANGES(logId,op) VALUES(NEW.id," + C.CHANGE_UPDATE + "); END",
+              "CREATE TRIGGER TRG_LOGGER_delete AFTER DELETE ON LOGGER " +
+                      "BEGIN INSERT INTO CHANGES(logId,op) VALUES(OLD.id," + C.CHANGE_DELETE + "); END" },
+            { // keyed fingerprint of the plain-text password, existing rows are filled on the next login
+              "ALTER TABLE LOGGER ADD COLUMN mac BLOB",
+              "ALTER TABLE ARCHIVE ADD COLUMN mac BLOB",
+              "CREATE INDEX IF NOT EXISTS IDX_LOGGER_mac ON LOGGER(mac)",
+              "CREATE INDEX IF NOT EXISTS IDX_ARCHIVE_mac ON ARCHIVE(mac, logId)" },
+            { // key derivation cost of each key, the existing keys were derived with the fixed cost
+              "ALTER TABLE PASSKEYS ADD COLUMN iterations INTEGER NOT NULL DEFAULT " + C.STR_PARAM },
+            { // key derivation function of each key, iterations is its cost, the existing keys are PBKDF2 verified by SHA-512
+              "ALTER TABLE PASSKEYS ADD COLUMN kdf INTEGER NOT NULL DEFAULT " + C.KDF_PBKDF2_SHA512,
+              "ALTER TABLE PASSKEYS ADD COLUMN blockSize INTEGER NOT NULL DEFAULT 0",
+              "ALTER TABLE PASSKEYS ADD COLUMN parallelism INTEGER NOT NULL DEFAULT 0" },
+            { // re-encryption (password,iv) changes the fingerprint of the record preview, so it is a visible change
+              "DROP TRIGGER IF EXISTS TRG_LOGGER_update",
+              "CREATE TRIGGER TRG_LOGGER_update AFTER UPDATE OF logName,userName,password,iv,date ON LOGGER " +
+                      "BEGIN INSERT INTO CHANGES(logId,op) VALUES(NEW.id," + C.CHANGE_UPDATE + "); END" },
+            { // record format of each key, the passwords of the existing keys may be in the old format until they are packed
+              "ALTER TABLE PASSKEYS ADD COLUMN recordFormat INTEGER NOT NULL DEFAULT " + C.RECORD_FORMAT_CBC },
+            { // the keys replaced by a key update were kept, only the last key is used and the old verifiers can be attacked instead of it
+              "DELETE FROM PASSKEYS WHERE id<>(SELECT MAX(id) FROM PASSKEYS)" }
+    };
+
     /**
      * Constructor
      * @param context - context to attach and init the handler
      */
     public SQLHandler(Context context) {
-        super(context,"SMILELOGGERDB.sqlite",null,1);
-        init();
+        super(context,"SMILELOGGERDB.sqlite",null,C.DB_VERSION);
+        // WAL, readers use their own pooled connections and are not blocked by the (single) writer
+        setWriteAheadLoggingEnabled(true);
     }
 
     @Override
-    public void onCreate(SQLiteDatabase sqLiteDatabase) { }
+    public void onCreate(SQLiteDatabase sqLiteDatabase)
+    {
+        onUpgrade(sqLiteDatabase,0,C.DB_VERSION);
+    }
+
+    /**
+     * Upgrade the database schema by running all the migrations between the given versions (in order).
+     * called only when the stored schema version is older than C.DB_VERSION, so warm starts skip it.
+     * @param sqLiteDatabase - the database to upgrade
+     * @param oldVersion - the schema version the database has
+     * @param newVersion - the schema version to upgrade to
+     */
     @Override
-    public void onUpgrade(SQLiteDatabase sqLiteDatabase, int i, int i1) { }
+    public void onUpgrade(SQLiteDatabase sqLiteDatabase, int oldVersion, int newVersion)
+    {
+        for(int version = oldVersion; version < newVersion; version++)
+        {
+            for(String sql : MIGRATIONS[version])
+            {
+                if(sql.equals(SQL_UNIQUE_LOG_NAME))
+                    createLogNameIndex(sqLiteDatabase);
+                else
+                    sqLiteDatabase.execSQL(sql);
+            }
+        }
+    }
+
+    /**
+     * Create the unique index of the log names, the duplicate names of an old database are renamed first (see SQL_RENAME_DUPLICATE_LOG_NAMES).
+     * if a renamed log still collides with another name the index is created without uniqueness, so the database can still be opened.
+     * @param sqLiteDatabase - the database being upgraded
+     */
+    private void createLogNameIndex(SQLiteDatabase sqLiteDatabase)
+    {
+        sqLiteDatabase.execSQL(SQL_RENAME_DUPLICATE_LOG_NAMES);
+        try
+        {
+            sqLiteDatabase.execSQL(SQL_UNIQUE_LOG_NAME);
+        }
+        catch (SQLiteConstraintException e)
+        {
+            Log.w("SQLHandler","duplicate log names left, the log names are indexed without uniqueness",e);
+            sqLiteDatabase.execSQL("CREATE INDEX IF NOT EXISTS IDX_LOGGER_logName ON LOGGER(logName)");
+        }
+    }
+
+    /**
+     * Create an sql expression that converts day, month and year columns into an epoch-day (days since 1/1/1970)
+     * @param day - the name of the day column
+     * @param month - the name of the month column
+     * @param year - the name of the year column
+     * @return sql expression of the epoch-day
+     */
+    private static String epochDaySql(String day, String month, String year)
+    {
+        return "CAST(julianday(printf('%04d-%02d-%02d'," + year + "," + month + "," + day + ")) - 2440587.5 AS INTEGER)";
+    }
+
+    /**
+     * Open a long-lived connection to the database that will be shared by all the operations
+     * until closeSession is called (used for the authenticated session).
+     */
+    public synchronized void openSession()
+    {
+        if(this.session != null && this.session.isOpen())
+            return;
+
+        this.session = getWritableDatabase();
+        this.openCount++;
+    }
+
+    /**
+     * Close the long-lived connection that was opened with openSession, if exists.
+     * the connection is closed on the writer thread, after all the writes that are already queued.
+     */
+    public void closeSession()
+    {
+        write(() -> {
+            synchronized (this)
+            {
+                if(this.session == null)
+                    return false;
+
+                this.statements.evictAll();
+                this.session.close();
+                this.session = null;
+                this.closeCount++;
+                return true;
+            }
+        });
+    }
+
+    /**
+     * Run a given write action on the writer thread and wait for its result.
+     * if called from the writer thread the action runs directly.
+     * @param action - the write action to run
+     * @return the result of the action, false if the action threw an exception
+     */
+    private boolean write(Callable<Boolean> action)
+    {
+        try
+        {
+            if(Thread.currentThread() == writerThread)
+                return action.call();
+
+            return writer.submit(action).get();
+        }
+        catch (Exception e)
+        {
+            e.printStackTrace();
+        }
+        return false;
+    }
+
+    /**
+     * Check if a long-lived connection is currently opened
+     * @return true if a session is opened, false otherwise
+     */
+    public synchronized boolean isSessionOpen()
+    {
+        return this.session != null && this.session.isOpen();
+    }
+
+    /**
+     * Get the number of times a database connection was opened
+     * @return the number of connection opens since the handler was created
+     */
+    public synchronized int getOpenCount()
+    {
+        return this.openCount;
+    }
+
+    /**
+     * Get the number of times a database connection was closed
+     * @return the number of connection closes since the handler was created
+     */
+    public synchronized int getCloseCount()
+    {
+        return this.closeCount;
+    }
 
     /**
-     * initialize database tables
+     * Get a connection to the database for a single operation.
+     * if a session is opened its connection is returned, otherwise a new one is opened.
+     * @return an opened database connection, must be returned with release after use
      */
-    private void init()
+    private synchronized SQLiteDatabase acquire()
     {
-        SQLiteDatabase database = getWritableDatabase();
+        if(this.session != null && this.session.isOpen())
+            return this.session;
 
-        database.execSQL(TABLE_KEY);
-        database.execSQL(TABLE_LOG);
-        database.execSQL(TABLE_ARCHIVE);
+        this.openCount++;
+        return getWritableDatabase();
+    }
+
+    /**
+     * Return a connection that was taken with acquire, closing it only if it is not the session connection.
+     * @param database - the connection to release
+     */
+    private synchronized void release(SQLiteDatabase database)
+    {
+        if(database == this.session)
+            return;
 
         database.close();
+        this.closeCount++;
+    }
+
+    /**
+     * Get a compiled statement of a given sql with cleared bindings (must be called from the writer thread).
+     * on the session connection the statement is taken from (or added to) the statement cache.
+     * @param database - the connection (from acquire) to compile the statement on
+     * @param sql - the sql of the statement
+     * @return a compiled statement, must be returned with recycle after use
+     */
+    private SQLiteStatement compile(SQLiteDatabase database, String sql)
+    {
+        if(database != this.session)
+            return database.compileStatement(sql);
+
+        SQLiteStatement statement = this.statements.get(sql);
+        if(statement == null)
+        {
+            statement = database.compileStatement(sql);
+            this.statements.put(sql,statement);
+        }
+        statement.clearBindings();
+        return statement;
+    }
+
+    /**
+     * Return a statement that was taken with compile, closing it only if it is not cached.
+     * @param database - the connection the statement was compiled on
+     * @param statement - the statement to return
+     */
+    private void recycle(SQLiteDatabase database, SQLiteStatement statement)
+    {
+        if(database != this.session)
+            statement.close();
     }
 
     /**
@@ -83,75 +384,131 @@ public class SQLHandler extends SQLiteOpenHelper {
      */
     public boolean hasKey()
     {
-        SQLiteDatabase database = getReadableDatabase();
+        SQLiteDatabase database = acquire();
         int nRows = (int)DatabaseUtils.queryNumEntries(database, "PASSKEYS");
-        database.close();
+        release(database);
         return nRows > 0;
     }
 
     /**
-     * Get the current authentication key information
-     * @return
+     * Get the current authentication key information, all of it from the same row (a key update can not be seen in between)
+     * @return the key verifier, its salt, its key derivation parameters and its record format, null if no key exists
      */
-    public byte[][] getKey()
+    public StoredKey getKey()
     {
-        if (!hasKey())
-            return null;
-
-        SQLiteDatabase database = getReadableDatabase();
+        SQLiteDatabase database = acquire();
 
-        String sql = "SELECT hashPassword,salt,id FROM PASSKEYS ORDER BY id DESC LIMIT 0, 1";
+        String sql = "SELECT hashPassword,salt,kdf,iterations,blockSize,parallelism,recordFormat FROM PASSKEYS ORDER BY id DESC LIMIT 0, 1";
         Cursor data = database.rawQuery(sql, null);
 
-        byte[][] res = new byte[2][];
-        while (data.moveToNext())
-        {
-            res[C.HASHED] = data.getBlob(0);
-            res[C.SALT] = data.getBlob(1);
-
-        }
+        StoredKey res = null;
+        if (data.moveToNext())
+            res = new StoredKey(data.getBlob(0),data.getBlob(1),new KdfParams(data.getInt(2),data.getInt(3),data.getInt(4),data.getInt(5)),data.getInt(6));
         data.close();
-        database.close();
+        release(database);
 
         return res;
     }
 
     /**
-     * Update the user authenticate-key
-     * @param key - hashed password to save
-     * @param kSalt - salt used to generate the key
+     * Mark all the passwords of the current authentication key as packed (see StoredKey.getRecordFormat), the old format is not accepted from now on
      * @return true if the database has been updated successfully, false otherwise
      */
-    public boolean updateKey(byte[] key, byte[] kSalt)
+    public boolean setKeyRecordFormatPacked()
     {
-        SQLiteDatabase database = getWritableDatabase();
+        return write(() -> {
+            SQLiteDatabase database = acquire();
 
-        String sql = "INSERT INTO PASSKEYS VALUES(NULL,?,?)";
-        SQLiteStatement statement = database.compileStatement(sql);
-        statement.clearBindings();
+            SQLiteStatement statement = compile(database,"UPDATE PASSKEYS SET recordFormat=" + C.RECORD_FORMAT_GCM + " WHERE id=(SELECT MAX(id) FROM PASSKEYS)");
+            int nRows = statement.executeUpdateDelete();
+
+            recycle(database,statement);
+            release(database);
+
+            return nRows == 1;
+        });
+    }
 
+    /**
+     * Bind the values of a new authentication key into a compiled SQL_INSERT_KEY statement
+     * @param statement - the compiled statement
+     * @param key - the key verifier to save
+     * @param kSalt - salt used to generate the key
+     * @param params - the key derivation function and parameters of the key
+     */
+    private static void bindKey(SQLiteStatement statement, byte[] key, byte[] kSalt, KdfParams params)
+    {
         statement.bindBlob(1,kSalt);
         statement.bindBlob(2,key);
-        long nId = statement.executeInsert();
+        statement.bindLong(3,params.getKdf());
+        statement.bindLong(4,params.getCost());
+        statement.bindLong(5,params.getBlockSize());
+        statement.bindLong(6,params.getParallelism());
+    }
 
-        statement.close();
-        database.close();
+    /**
+     * Update the user authenticate-key, the keys it replaces are deleted
+     * @param key - the key verifier to save (see SecurityHandler.getVerifier)
+     * @param kSalt - salt used to generate the key
+     * @param params - the key derivation function and parameters the secret is derived with
+     * @return true if the database has been updated successfully, false otherwise
+     */
+    public boolean updateKey(byte[] key, byte[] kSalt, KdfParams params)
+    {
+        return write(() -> {
+            SQLiteDatabase database = acquire();
 
-        return nId != -1;
+            database.beginTransaction();
+            try
+            {
+                insertKey(database,key,kSalt,params);
+                database.setTransactionSuccessful();
+            }
+            catch (Exception e)
+            {
+                e.printStackTrace();
+                database.endTransaction();
+                release(database);
+                return false;
+            }
+            database.endTransaction();
+            release(database);
+
+            return true;
+        });
     }
 
     /**
-     * Get the current date information representation {Day,Month,Year}
-     * @return double array with the digit representation of the current date.
+     * Insert a new authentication key and delete the keys it replaces (must run inside a transaction).
+     * an old key verifier is never kept, it could be attacked instead of the new one (a key saved before the verifier is a fast SHA-512).
+     * @param database - the connection that holds the transaction
+     * @param key - the key verifier to save
+     * @param kSalt - salt used to generate the key
+     * @param params - the key derivation function and parameters of the key
+     * @throws SQLException - if the key was not inserted
      */
-    private double[] getCurrentDate()
+    private void insertKey(SQLiteDatabase database, byte[] key, byte[] kSalt, KdfParams params) throws SQLException
     {
-        Calendar calendar = Calendar.getInstance(TimeZone.getDefault());
-        int day = calendar.get(Calendar.DATE);
-        int month = calendar.get(Calendar.MONTH) + 1;
-        int year = calendar.get(Calendar.YEAR);
+        SQLiteStatement statement = compile(database,SQL_INSERT_KEY);
+        bindKey(statement,key,kSalt,params);
+        long nId = statement.executeInsert();
+        recycle(database,statement);
+        if(nId == -1)
+            throw new SQLException("insert of the key failed");
+
+        SQLiteStatement delete = compile(database,"DELETE FROM PASSKEYS WHERE id<>?");
+        delete.bindLong(1,nId);
+        delete.executeUpdateDelete();
+        recycle(database,delete);
+    }
 
-        return new double[]{(double)day,(double)month,(double)year};
+    /**
+     * Get the current date as an epoch-day
+     * @return the number of days since 1/1/1970 until today
+     */
+    private long getCurrentDate()
+    {
+        return LocalDate.now().toEpochDay();
     }
 
     /**
@@ -159,89 +516,214 @@ public class SQLHandler extends SQLiteOpenHelper {
      * @param logName - the name of the log
      * @param userName - the user-name used in the log
      * @param encrypted - the password encrypted with the user current secret used in the log
-     * @param sIv - the initial vector that was used to encrypt the password
+     * @param sIv - the initial vector that was used to encrypt the password, null for a packed password
+     * @param mac - the keyed fingerprint of the plain-text password
      * @return true if the record was added successfully, false otherwise
      */
-    public boolean insertRecord(String logName, String userName, byte[] encrypted, byte[] sIv)
+    public boolean insertRecord(String logName, String userName, byte[] encrypted, byte[] sIv, byte[] mac)
     {
-        SQLiteDatabase database = getWritableDatabase();
+        return write(() -> {
+            SQLiteDatabase database = acquire();
 
-        String sql = "INSERT INTO LOGGER VALUES(NULL,?,?,?,?,?,?,?)";
-        SQLiteStatement statement = database.compileStatement(sql);
-        statement.clearBindings();
+            SQLiteStatement statement = compile(database,SQL_INSERT_RECORD);
 
-        double[] currDate = getCurrentDate();
+            bindRecord(statement,logName,userName,encrypted,sIv,mac,getCurrentDate());
+            long nId = statement.executeInsert();
 
-        statement.bindString(1,logName);
-        statement.bindString(2,userName);
-        statement.bindBlob(3,encrypted);
-        statement.bindBlob(4,sIv);
-        statement.bindDouble(5,currDate[C.DAY]);
-        statement.bindDouble(6,currDate[C.MONTH]);
-        statement.bindDouble(7,currDate[C.YEAR]);
+            recycle(database,statement);
+            release(database);
 
-        long nId = statement.executeInsert();
+            return nId != -1;
+        });
+    }
 
-        statement.close();
-        database.close();
+    /**
+     * Insert a batch of new log records into the database, all in one transaction.
+     * the lists are corresponding by index, each index describes one record.
+     * @param logNames - the names of the logs
+     * @param userNames - the user-names used in the logs
+     * @param encryptedList - the passwords encrypted with the user current secret
+     * @param ivList - the initial vectors that was used to encrypt each password (null for a packed password)
+     * @param macList - the keyed fingerprints of each plain-text password
+     * @return true if all the records were added successfully, false otherwise (nothing is added)
+     */
+    public boolean insertRecords(String[] logNames, String[] userNames, byte[][] encryptedList, byte[][] ivList, byte[][] macList)
+    {
+        return write(() -> {
+            if(logNames == null || userNames == null || encryptedList == null || ivList == null || macList == null)
+                return false;
+
+            if(logNames.length != userNames.length || logNames.length != encryptedList.length || logNames.length != ivList.length || logNames.length != macList.length)
+                return false;
+
+            SQLiteDatabase database = acquire();
+            SQLiteStatement statement = compile(database,SQL_INSERT_RECORD);
+            long currDate = getCurrentDate();
+
+            boolean result = true;
+            database.beginTransaction();
+            try
+            {
+                for(int i = 0; result && i < logNames.length; i++)
+                {
+                    bindRecord(statement,logNames[i],userNames[i],encryptedList[i],ivList[i],macList[i],currDate);
+                    result = statement.executeInsert() != -1;
+                }
+
+                if(result)
+                    database.setTransactionSuccessful();
+            }
+            catch (Exception e)
+            {
+                e.printStackTrace();
+                result = false;
+            }
+            database.endTransaction();
 
-        return nId != -1;
+            recycle(database,statement);
+            release(database);
+
+            return result;
+        });
     }
 
     /**
-     * Check if a given log-name is already exists in the database
-     * @param name - the log name to check
-     * @return true if the log-name is unique and not found in the database, false otherwise
+     * Bind the information of a new log record into a compiled SQL_INSERT_RECORD statement
+     * @param statement - the insert statement to bind into
+     * @param logName - the name of the log
+     * @param userName - the user-name used in the log
+     * @param encrypted - the encrypted password used in the log
+     * @param sIv - the initial vector that was used to encrypt the password, null for a packed password
+     * @param mac - the keyed fingerprint of the plain-text password
+     * @param date - the epoch-day to save as the password creation date
      */
-    public boolean isLogNameUnique(String name)
+    private void bindRecord(SQLiteStatement statement, String logName, String userName, byte[] encrypted, byte[] sIv, byte[] mac, long date)
     {
-        SQLiteDatabase database = getReadableDatabase();
-
-        String sql = "SELECT count(*) FROM LOGGER WHERE logName= ?";
-        SQLiteStatement statement = database.compileStatement(sql);
         statement.clearBindings();
+        statement.bindString(1,logName);
+        statement.bindString(2,userName);
+        statement.bindBlob(3,encrypted);
+        bindBlobOrNull(statement,4,sIv);
+        statement.bindBlob(5,mac);
+        statement.bindLong(6,date);
+    }
 
-        statement.bindString(1,name);
+    /**
+     * Bind a blob that may be missing (the initial vector of a packed password, see SecurityHandler.encryptRecord)
+     * @param statement - the statement to bind into
+     * @param index - the index of the binding
+     * @param value - the blob to bind, null binds NULL
+     */
+    private static void bindBlobOrNull(SQLiteStatement statement, int index, byte[] value)
+    {
+        if(value == null)
+            statement.bindNull(index);
+        else
+            statement.bindBlob(index,value);
+    }
 
-        long count = statement.simpleQueryForLong();
+    /**
+     * Get all the log names that are stored in the database
+     * @return set of all the log names
+     */
+    public Set<String> getLogNames()
+    {
+        SQLiteDatabase database = acquire();
+        HashSet<String> result = new HashSet<>();
 
-        statement.close();
-        database.close();
+        Cursor cursor = database.rawQuery("SELECT logName FROM LOGGER", null);
+        while (cursor.moveToNext())
+            result.add(cursor.getString(0));
 
-        return count == 0;
+        cursor.close();
+        release(database);
+        return result;
     }
 
     /**
-     * Get all the records from the database as an object representation.
+     * Get all the records from the database as an object representation (preview only, without the encrypted password).
      * Optional get only one record base on a given id, if id = -1 returns all records
      * @param id_where - id of the record to return, if -1 then returns all the records
      * @return list of records stored in the database as object representation
      */
     public List<PreviewRecord> getRecords(int id_where)
     {
-        SQLiteDatabase database = getReadableDatabase();
+        String sql = id_where == -1 ? "SELECT id,logName,userName," + SQL_FINGERPRINT + ",date FROM LOGGER" : "SELECT id,logName,userName," + SQL_FINGERPRINT + ",date FROM LOGGER WHERE id = ?";
+        return queryRecords(sql, id_where == -1 ? null : new String[]{String.valueOf(id_where)});
+    }
+
+    /**
+     * Get one page of records ordered by id, starting after a given id (keyset paging).
+     * @param afterId - only records with a bigger id are returned, -1 for the first page
+     * @param pageSize - the max number of records in the page
+     * @return list of at most pageSize records, empty if no more records exists
+     */
+    public List<PreviewRecord> getRecordsPage(int afterId, int pageSize)
+    {
+        String sql = "SELECT id,logName,userName," + SQL_FINGERPRINT + ",date FROM LOGGER WHERE id > ? ORDER BY id LIMIT ?";
+        return queryRecords(sql, new String[]{String.valueOf(afterId), String.valueOf(pageSize)});
+    }
 
-        ArrayList<PreviewRecord> result = new ArrayList<>();
+    /**
+     * Get an iterator that fetches the records page after page (ordered by id), each page is fetched only when requested.
+     * @param pageSize - the max number of records in each page
+     * @return iterator over the pages of the records
+     */
+    public Iterator<List<PreviewRecord>> getRecordPages(final int pageSize)
+    {
+        return new Iterator<List<PreviewRecord>>()
+        {
+            private int lastId = -1;
+            private boolean done = false;
 
-        String sql = id_where == -1 ? "SELECT * FROM LOGGER" : "SELECT * FROM LOGGER WHERE id = ?";
+            @Override
+            public boolean hasNext()
+            {
+                return !done;
+            }
 
-        Cursor cursor = database.rawQuery(sql, id_where == -1 ? null : new String[]{String.valueOf(id_where)});
+            @Override
+            public List<PreviewRecord> next()
+            {
+                if(done)
+                    throw new NoSuchElementException();
+
+                List<PreviewRecord> page = getRecordsPage(lastId,pageSize);
+                if(!page.isEmpty())
+                    lastId = page.get(page.size() - 1).getId();
+                done = page.size() < pageSize;
+
+                return page;
+            }
+        };
+    }
+
+    /**
+     * Run a given query on the LOGGER table and convert the result into an object representation.
+     * @param sql - query that selects the columns id,logName,userName,SQL_FINGERPRINT,date (in this order)
+     * @param args - the arguments of the query
+     * @return list of the records the query returned
+     */
+    private List<PreviewRecord> queryRecords(String sql, String[] args)
+    {
+        SQLiteDatabase database = acquire();
+
+        ArrayList<PreviewRecord> result = new ArrayList<>();
+
+        Cursor cursor = database.rawQuery(sql, args);
         while (cursor.moveToNext())
         {
             int id = cursor.getInt(0);
             String logName = cursor.getString(1);
             String userName = cursor.getString(2);
-            byte[] encrypted = cursor.getBlob(3);
-            byte[] sIv = cursor.getBlob(4);
-            int day = cursor.getInt(5);
-            int month = cursor.getInt(6);
-            int year = cursor.getInt(7);
+            long fingerprint = PreviewRecord.fingerprintOf(cursor.getBlob(3));
+            long date = cursor.getLong(4);
 
-            result.add(new PreviewRecord(id,logName,userName,encrypted,sIv,day,month,year));
+            result.add(new PreviewRecord(id,logName,userName,fingerprint,date));
         }
 
         cursor.close();
-        database.close();
+        release(database);
         return result;
     }
 
@@ -255,12 +737,379 @@ public class SQLHandler extends SQLiteOpenHelper {
     }
 
     /**
-     * Get all the archives of all records from the database as an object representation.
-     * @return list of archives stored in the database as object representation
+     * Get the records with the given id's from the database as an object representation (preview only).
+     * @param ids - the id's of the records to return
+     * @return list of the records that exists, ordered by id
      */
-    public List<RecordArchive> getAllRecordArchives()
+    public List<PreviewRecord> getRecords(List<Integer> ids)
     {
-        return getRecordArchives(-1);
+        ArrayList<PreviewRecord> result = new ArrayList<>();
+
+        for(int start = 0; start < ids.size(); start += C.MAX_SQL_VARIABLES)
+        {
+            List<Integer> chunk = ids.subList(start, Math.min(start + C.MAX_SQL_VARIABLES, ids.size()));
+            String[] args = new String[chunk.size()];
+            for(int i = 0; i < args.length; i++)
+                args[i] = String.valueOf(chunk.get(i));
+
+            String placeholders = TextUtils.join(",", Collections.nCopies(args.length, "?"));
+            result.addAll(queryRecords("SELECT id,logName,userName," + SQL_FINGERPRINT + ",date FROM LOGGER WHERE id IN (" + placeholders + ") ORDER BY id", args));
+        }
+
+        return result;
+    }
+
+    /**
+     * Get the latest change version of the records
+     * @return the version of the latest change, 0 if no change was made
+     */
+    public long getChangesVersion()
+    {
+        SQLiteDatabase database = acquire();
+        long version = DatabaseUtils.longForQuery(database,"SELECT coalesce(max(version),0) FROM CHANGES",null);
+        release(database);
+        return version;
+    }
+
+    /**
+     * Get the changes that were made to the records after a given change version.
+     * multiple changes to the same record are merged: inserted and then updated is inserted, removed in the end is removed.
+     * @param version - the change version to get the changes after (from getChangesVersion or a previous RecordChanges)
+     * @return the merged changes and the latest change version they include
+     */
+    public RecordChanges getChangesSince(long version)
+    {
+        SQLiteDatabase database = acquire();
+
+        ArrayList<Integer> inserted = new ArrayList<>();
+        ArrayList<Integer> updated = new ArrayList<>();
+        ArrayList<Integer> removed = new ArrayList<>();
+        long latest = version;
+
+        String sql = "SELECT logId, min(op), max(op), max(version) FROM CHANGES WHERE version > ? GROUP BY logId ORDER BY logId";
+        Cursor cursor = database.rawQuery(sql, new String[]{String.valueOf(version)});
+        while (cursor.moveToNext())
+        {
+            int logId = cursor.getInt(0);
+
+            if(cursor.getInt(2) == C.CHANGE_DELETE)
+                removed.add(logId);
+            else if(cursor.getInt(1) == C.CHANGE_INSERT)
+                inserted.add(logId);
+            else
+                updated.add(logId);
+
+            latest = Math.max(latest, cursor.getLong(3));
+        }
+
+        cursor.close();
+        release(database);
+        return new RecordChanges(latest,inserted,updated,removed);
+    }
+
+    /**
+     * Remove the changes that are no longer needed from the change log
+     * @param version - changes with this version or older are removed
+     * @return true if the change log was trimmed, false otherwise
+     */
+    public boolean trimChanges(long version)
+    {
+        return write(() -> {
+            SQLiteDatabase database = acquire();
+
+            SQLiteStatement statement = compile(database,"DELETE FROM CHANGES WHERE version <= ?");
+            statement.bindLong(1,version);
+            statement.executeUpdateDelete();
+
+            recycle(database,statement);
+            release(database);
+            return true;
+        });
+    }
+
+    /**
+     * Get the encrypted password of a given record
+     * @param id - the id of the record
+     * @return array with the encrypted password and its initial vector (C.ENCRYPTED, C.IV), null if the record not exists
+     */
+    public byte[][] getRecordCipher(int id)
+    {
+        return getRecordCiphers(id).get(id);
+    }
+
+    /**
+     * Get the encrypted passwords of the records from the database.
+     * Optional get only one record base on a given id, if id = -1 returns all records
+     * @param id_where - id of the record to return, if -1 then returns all the records
+     * @return map between record id and its encrypted password and initial vector (C.ENCRYPTED, C.IV), ordered by id
+     */
+    public Map<Integer, byte[][]> getRecordCiphers(int id_where)
+    {
+        String sql = id_where == -1 ? "SELECT id,password,iv FROM LOGGER ORDER BY id" : "SELECT id,password,iv FROM LOGGER WHERE id = ?";
+        return queryCiphers(sql, id_where == -1 ? null : new String[]{String.valueOf(id_where)});
+    }
+
+    /**
+     * Get the encrypted passwords of all the archives of all records from the database.
+     * @return map between archive id and its encrypted password and initial vector (C.ENCRYPTED, C.IV), ordered by id
+     */
+    public Map<Integer, byte[][]> getArchiveCiphers()
+    {
+        return queryCiphers("SELECT id,password,iv FROM ARCHIVE ORDER BY id", null);
+    }
+
+    /**
+     * Get the encrypted passwords of the records that have no mac yet (added before macs were stored).
+     * @return map between record id and its encrypted password and initial vector (C.ENCRYPTED, C.IV), ordered by id
+     */
+    public Map<Integer, byte[][]> getRecordCiphersWithoutMac()
+    {
+        return queryCiphers("SELECT id,password,iv FROM LOGGER WHERE mac IS NULL ORDER BY id", null);
+    }
+
+    /**
+     * Get the encrypted passwords of the archives that have no mac yet (archived before macs were stored).
+     * @return map between archive id and its encrypted password and initial vector (C.ENCRYPTED, C.IV), ordered by id
+     */
+    public Map<Integer, byte[][]> getArchiveCiphersWithoutMac()
+    {
+        return queryCiphers("SELECT id,password,iv FROM ARCHIVE WHERE mac IS NULL ORDER BY id", null);
+    }
+
+    /**
+     * Get the encrypted passwords of the first records that are still in the old format (AES/CBC with an initial vector).
+     * @param limit - the max number of records to return
+     * @return map between record id and its encrypted password and initial vector (C.ENCRYPTED, C.IV), ordered by id
+     */
+    public Map<Integer, byte[][]> getRecordCiphersUnpacked(int limit)
+    {
+        return queryCiphers("SELECT id,password,iv FROM LOGGER WHERE iv IS NOT NULL ORDER BY id LIMIT ?", new String[]{String.valueOf(limit)});
+    }
+
+    /**
+     * Get the encrypted passwords of the first archives that are still in the old format (AES/CBC with an initial vector).
+     * @param limit - the max number of archives to return
+     * @return map between archive id and its encrypted password and initial vector (C.ENCRYPTED, C.IV), ordered by id
+     */
+    public Map<Integer, byte[][]> getArchiveCiphersUnpacked(int limit)
+    {
+        return queryCiphers("SELECT id,password,iv FROM ARCHIVE WHERE iv IS NOT NULL ORDER BY id LIMIT ?", new String[]{String.valueOf(limit)});
+    }
+
+    /**
+     * Replace old format passwords of the given records and archives with the same passwords in the packed format, all in a transaction.
+     * a row is replaced only if its initial vector did not change since it was read, a row that got a new password meanwhile is kept.
+     * @param recordIdList - the id's of the records, corresponding by index to the other records lists
+     * @param ivRecordList - the initial vector each record password was read with
+     * @param packedRecordList - the packed password of each record
+     * @param archiveIdList - the id's of the archives, corresponding by index to the other archives lists
+     * @param ivArchiveList - the initial vector each archive password was read with
+     * @param packedArchiveList - the packed password of each archive
+     * @return true if the transaction was success, false otherwise (nothing is replaced)
+     */
+    public boolean packPasswords(int[] recordIdList, byte[][] ivRecordList, byte[][] packedRecordList, int[] archiveIdList, byte[][] ivArchiveList, byte[][] packedArchiveList)
+    {
+        return write(() -> {
+            if(recordIdList.length != ivRecordList.length || recordIdList.length != packedRecordList.length)
+                return false;
+
+            if(archiveIdList.length != ivArchiveList.length || archiveIdList.length != packedArchiveList.length)
+                return false;
+
+            SQLiteDatabase database = acquire();
+
+            database.beginTransaction();
+            try
+            {
+                packRows(database,"UPDATE LOGGER SET password=?, iv=NULL WHERE id=? AND iv=?",recordIdList,ivRecordList,packedRecordList);
+                packRows(database,"UPDATE ARCHIVE SET password=?, iv=NULL WHERE id=? AND iv=?",archiveIdList,ivArchiveList,packedArchiveList);
+
+                database.setTransactionSuccessful();
+            }
+            catch (Exception e)
+            {
+                e.printStackTrace();
+                database.endTransaction();
+                release(database);
+                return false;
+            }
+            database.endTransaction();
+            release(database);
+
+            return true;
+        });
+    }
+
+    /**
+     * Write the packed password of each given row with one reused statement (must run inside a transaction).
+     * @param database - the connection that holds the transaction
+     * @param sql - update statement with the bindings (password, id, iv)
+     * @param idList - the id's of the rows to update
+     * @param ivList - the initial vector each row was read with
+     * @param packedList - the packed password of each row
+     */
+    private void packRows(SQLiteDatabase database, String sql, int[] idList, byte[][] ivList, byte[][] packedList)
+    {
+        SQLiteStatement statement = compile(database,sql);
+        try
+        {
+            for(int i = 0; i < idList.length; i++)
+            {
+                statement.bindBlob(1,packedList[i]);
+                statement.bindLong(2,idList[i]);
+                statement.bindBlob(3,ivList[i]);
+                statement.executeUpdateDelete();
+            }
+        }
+        finally
+        {
+            recycle(database,statement);
+        }
+    }
+
+    /**
+     * Save the mac of the given records and archives, all in a transaction.
+     * @param recordIdList - the id's of the records, corresponding by index to macRecordList
+     * @param macRecordList - the mac of each record password
+     * @param archiveIdList - the id's of the archives, corresponding by index to macArchiveList
+     * @param macArchiveList - the mac of each archive password
+     * @return true if all the macs were saved, false otherwise (nothing is saved)
+     */
+    public boolean updateMacs(int[] recordIdList, byte[][] macRecordList, int[] archiveIdList, byte[][] macArchiveList)
+    {
+        return write(() -> {
+            if(recordIdList.length != macRecordList.length || archiveIdList.length != macArchiveList.length)
+                return false;
+
+            SQLiteDatabase database = acquire();
+
+            database.beginTransaction();
+            try
+            {
+                updateMacRows(database,"UPDATE LOGGER SET mac=? WHERE id=?",recordIdList,macRecordList);
+                updateMacRows(database,"UPDATE ARCHIVE SET mac=? WHERE id=?",archiveIdList,macArchiveList);
+
+                database.setTransactionSuccessful();
+            }
+            catch (Exception e)
+            {
+                e.printStackTrace();
+                database.endTransaction();
+                release(database);
+                return false;
+            }
+            database.endTransaction();
+            release(database);
+
+            return true;
+        });
+    }
+
+    /**
+     * Write the mac of each given row with one reused statement (must run inside a transaction).
+     * @param database - the connection that holds the transaction
+     * @param sql - update statement with the bindings (mac, id)
+     * @param idList - the id's of the rows to update
+     * @param macList - the mac of each row
+     */
+    private void updateMacRows(SQLiteDatabase database, String sql, int[] idList, byte[][] macList)
+    {
+        SQLiteStatement statement = compile(database,sql);
+        try
+        {
+            for(int i = 0; i < idList.length; i++)
+            {
+                statement.bindBlob(1,macList[i]);
+                statement.bindLong(2,idList[i]);
+                statement.executeUpdateDelete();
+            }
+        }
+        finally
+        {
+            recycle(database,statement);
+        }
+    }
+
+    /**
+     * Check if a password with a given mac is in the archive of a given record (index lookup, nothing is decrypted)
+     * @param logId - the id of the record
+     * @param mac - the keyed fingerprint of the password
+     * @return true if the record used this password before, false otherwise
+     */
+    public boolean isPasswordArchived(int logId, byte[] mac)
+    {
+        return queryExists("SELECT EXISTS(SELECT 1 FROM ARCHIVE WHERE mac = ? AND logId = ?)", mac, logId);
+    }
+
+    /**
+     * Check if a password with a given mac is the current password of a given record (index lookup, nothing is decrypted)
+     * @param logId - the id of the record
+     * @param mac - the keyed fingerprint of the password
+     * @return true if the record password in the database is this password, false otherwise
+     */
+    public boolean isPasswordCurrent(int logId, byte[] mac)
+    {
+        return queryExists("SELECT EXISTS(SELECT 1 FROM LOGGER WHERE mac = ? AND id = ?)", mac, logId);
+    }
+
+    /**
+     * Check if a password with a given mac is used by any record or archive (index lookup, nothing is decrypted)
+     * @param mac - the keyed fingerprint of the password
+     * @return true if the password is or was used by any record, false otherwise
+     */
+    public boolean isPasswordUsed(byte[] mac)
+    {
+        return queryExists("SELECT EXISTS(SELECT 1 FROM LOGGER WHERE mac = ?1) OR EXISTS(SELECT 1 FROM ARCHIVE WHERE mac = ?1)", mac, -1);
+    }
+
+    /**
+     * Run a given EXISTS query that is bound with a mac (and optional a log id)
+     * @param sql - query with the bindings (mac) or (mac, logId)
+     * @param mac - the mac to bind
+     * @param logId - the log id to bind, -1 if the query has no log id binding
+     * @return the result of the query
+     */
+    private boolean queryExists(String sql, byte[] mac, int logId)
+    {
+        SQLiteDatabase database = acquire();
+        // compiled directly, cached statements are only used by the writer thread
+        SQLiteStatement statement = database.compileStatement(sql);
+        statement.bindBlob(1,mac);
+        if(logId != -1)
+            statement.bindLong(2,logId);
+
+        boolean exists = statement.simpleQueryForLong() != 0;
+
+        statement.close();
+        release(database);
+        return exists;
+    }
+
+    /**
+     * Run a given query that selects id,password,iv and collect the encrypted passwords by id
+     * @param sql - the query to run
+     * @param args - the arguments of the query
+     * @return map between id and its encrypted password and initial vector (C.ENCRYPTED, C.IV)
+     */
+    private LinkedHashMap<Integer, byte[][]> queryCiphers(String sql, String[] args)
+    {
+        SQLiteDatabase database = acquire();
+        LinkedHashMap<Integer, byte[][]> result = new LinkedHashMap<>();
+
+        Cursor cursor = database.rawQuery(sql, args);
+
+        while (cursor.moveToNext())
+        {
+            byte[][] cipher = new byte[2][];
+            cipher[C.ENCRYPTED] = cursor.getBlob(1);
+            cipher[C.IV] = cursor.getBlob(2);
+
+            result.put(cursor.getInt(0),cipher);
+        }
+
+        cursor.close();
+        release(database);
+        return result;
     }
 
     /**
@@ -271,30 +1120,26 @@ public class SQLHandler extends SQLiteOpenHelper {
      */
     public List<RecordArchive> getRecordArchives(int id_where)
     {
-        SQLiteDatabase database = getReadableDatabase();
+        SQLiteDatabase database = acquire();
         ArrayList<RecordArchive> result = new ArrayList<>();
 
-        String sql = id_where == -1 ? "SELECT * FROM ARCHIVE" : "SELECT * FROM ARCHIVE WHERE logId = ? ORDER BY id DESC";
+        String sql = id_where == -1 ? "SELECT id,logId,startDate,endDate,password,iv FROM ARCHIVE" : "SELECT id,logId,startDate,endDate,password,iv FROM ARCHIVE WHERE logId = ? ORDER BY id DESC";
         Cursor cursor = database.rawQuery(sql, id_where == -1 ? null : new String[]{String.valueOf(id_where)});
 
         while (cursor.moveToNext())
         {
             int id = cursor.getInt(0);
             int logId = cursor.getInt(1);
-            int sDay = cursor.getInt(2);
-            int sMonth = cursor.getInt(3);
-            int sYear = cursor.getInt(4);
-            int eDay = cursor.getInt(5);
-            int eMonth = cursor.getInt(6);
-            int eYear = cursor.getInt(7);
-            byte[] encrypted = cursor.getBlob(8);
-            byte[] sIv = cursor.getBlob(9);
-
-            result.add(new RecordArchive(id,logId,sDay,sMonth,sYear,eDay,eMonth,eYear,encrypted,sIv));
+            long startDate = cursor.getLong(2);
+            long endDate = cursor.getLong(3);
+            byte[] encrypted = cursor.getBlob(4);
+            byte[] sIv = cursor.getBlob(5);
+
+            result.add(new RecordArchive(id,logId,startDate,endDate,encrypted,sIv));
         }
 
         cursor.close();
-        database.close();
+        release(database);
         return result;
     }
 
@@ -305,20 +1150,21 @@ public class SQLHandler extends SQLiteOpenHelper {
      */
     public boolean deleteRecord(int id)
     {
-        SQLiteDatabase database = getWritableDatabase();
-        // query to delete record using id
-        String sql = "DELETE FROM LOGGER WHERE id=?";
+        return write(() -> {
+            SQLiteDatabase database = acquire();
+            // query to delete record using id
+            String sql = "DELETE FROM LOGGER WHERE id=?";
 
-        SQLiteStatement statement = database.compileStatement(sql);
-        statement.clearBindings();
-        statement.bindDouble(1,(double)id);
+            SQLiteStatement statement = compile(database,sql);
+            statement.bindLong(1,id);
 
-        int effectedRows = statement.executeUpdateDelete();
+            int effectedRows = statement.executeUpdateDelete();
 
-        statement.close();
-        database.close();
+            recycle(database,statement);
+            release(database);
 
-        return effectedRows > 0;
+            return effectedRows > 0;
+        });
     }
 
     /**
@@ -328,197 +1174,292 @@ public class SQLHandler extends SQLiteOpenHelper {
      * @param logNameNew - the new log name
      * @param userNameNew - the new user-name of the log
      * @param encrypted - the new chiper-text password (after encryption)
-     * @param sIv - the new initial vector that was used for the encryption
+     * @param sIv - the new initial vector that was used for the encryption, null for a packed password
+     * @param mac - the keyed fingerprint of the new plain-text password
      * @return true if the record has been update successfully, false otherwise
      */
-    public boolean updateRecord(PreviewRecord record, String logNameNew, String userNameNew, byte[] encrypted, byte[] sIv)
+    public boolean updateRecord(PreviewRecord record, String logNameNew, String userNameNew, byte[] encrypted, byte[] sIv, byte[] mac)
     {
-        if(record == null || record.getPassword() == null)
-            return false;
+        return write(() -> {
+            if(record == null)
+                return false;
 
-        SQLiteDatabase database = getWritableDatabase();
+            SQLiteDatabase database = acquire();
 
-        database.beginTransaction();
-        try
-        {
-            if(logNameNew != null) // log name needs update
+            database.beginTransaction();
+            try
             {
-                String sql = "UPDATE LOGGER SET logName=? WHERE id=?";
-                SQLiteStatement statement = database.compileStatement(sql);
-                statement.clearBindings();
-                statement.bindString(1,logNameNew);
-                statement.bindDouble(2,record.getId());
-                statement.execute();
-                statement.close();
+                updateRow(database,record.getId(),logNameNew,userNameNew,encrypted,sIv,mac,getCurrentDate());
+
+                database.setTransactionSuccessful();
             }
-            if(userNameNew != null) // log user-name needs update
+            catch (Exception e)
             {
-                String sql = "UPDATE LOGGER SET userName=? WHERE id=?";
-                SQLiteStatement statement = database.compileStatement(sql);
-                statement.clearBindings();
-                statement.bindString(1,userNameNew);
-                statement.bindDouble(2,record.getId());
-                statement.execute();
-                statement.close();
+                e.printStackTrace();
+                database.endTransaction();
+                release(database);
+                return false;
             }
-            if(encrypted != null || sIv != null) // new password
+            database.endTransaction();
+            release(database);
+
+            return true;
+        });
+    }
+
+    /**
+     * Update a given record information (must run inside a transaction), if parameter is null this field will
+     * not change its values, if password has change will insert the previous into archive
+     * @param database - the connection that holds the transaction
+     * @param id - the id of the record to update
+     * @param logNameNew - the new log name
+     * @param userNameNew - the new user-name of the log
+     * @param encrypted - the new chiper-text password (after encryption)
+     * @param sIv - the new initial vector that was used for the encryption, null for a packed password
+     * @param mac - the keyed fingerprint of the new plain-text password
+     * @param currDate - the epoch-day of the update
+     */
+    private void updateRow(SQLiteDatabase database, int id, String logNameNew, String userNameNew, byte[] encrypted, byte[] sIv, byte[] mac, long currDate)
+    {
+        if(logNameNew != null) // log name needs update
+        {
+            String sql = "UPDATE LOGGER SET logName=? WHERE id=?";
+            SQLiteStatement statement = compile(database,sql);
+            try
             {
-                double[] currDate = getCurrentDate();
-
-                // insert old to archive
-                String archiveSql = "INSERT INTO ARCHIVE VALUES(NULL,?,?,?,?,?,?,?,?,?)";
-                SQLiteStatement insertStatment = database.compileStatement(archiveSql);
-                insertStatment.bindDouble(1,record.getId());
-                insertStatment.bindDouble(2,record.getDay());
-                insertStatment.bindDouble(3,record.getMonth());
-                insertStatment.bindDouble(4,record.getYear());
-                insertStatment.bindDouble(5,currDate[C.DAY]);
-                insertStatment.bindDouble(6,currDate[C.MONTH]);
-                insertStatment.bindDouble(7,currDate[C.YEAR]);
-                insertStatment.bindBlob(8,record.getEncrypted());
-                insertStatment.bindBlob(9,record.getsIv());
-                insertStatment.execute();
-                insertStatment.close();
-
-                // update main log-record
-                String sql = "UPDATE LOGGER SET iv=?, password=?, day=?, month=?, year=? WHERE id=?";
-                SQLiteStatement statement = database.compileStatement(sql);
-                statement.clearBindings();
-                statement.bindBlob(1,sIv);
-                statement.bindBlob(2,encrypted);
-                statement.bindDouble(3,currDate[C.DAY]);
-                statement.bindDouble(4,currDate[C.MONTH]);
-                statement.bindDouble(5,currDate[C.YEAR]);
-                statement.bindDouble(6,record.getId());
+                statement.bindString(1,logNameNew);
+                statement.bindLong(2,id);
                 statement.execute();
-                statement.close();
             }
-
-            database.setTransactionSuccessful();
+            finally
+            {
+                recycle(database,statement);
+            }
         }
-        catch (Exception e)
+        if(userNameNew != null) // log user-name needs update
         {
-            e.printStackTrace();
-            database.endTransaction();
-            database.close();
-            return false;
+            String sql = "UPDATE LOGGER SET userName=? WHERE id=?";
+            SQLiteStatement statement = compile(database,sql);
+            statement.bindString(1,userNameNew);
+            statement.bindLong(2,id);
+            statement.execute();
+            recycle(database,statement);
         }
-        database.endTransaction();
-        database.close();
+        if(encrypted != null || sIv != null) // new password
+        {
+            // insert old to archive (copied inside the database, the old cipher is not needed in memory)
+            String archiveSql = "INSERT INTO ARCHIVE(logId,startDate,endDate,password,iv,mac) SELECT id,date,?,password,iv,mac FROM LOGGER WHERE id=?";
+            SQLiteStatement insertStatment = compile(database,archiveSql);
+            insertStatment.bindLong(1,currDate);
+            insertStatment.bindLong(2,id);
+            insertStatment.execute();
+            recycle(database,insertStatment);
+
+            // update main log-record
+            String sql = "UPDATE LOGGER SET iv=?, password=?, mac=?, date=? WHERE id=?";
+            SQLiteStatement statement = compile(database,sql);
+            bindBlobOrNull(statement,1,sIv);
+            statement.bindBlob(2,encrypted);
+            statement.bindBlob(3,mac);
+            statement.bindLong(4,currDate);
+            statement.bindLong(5,id);
+            statement.execute();
+            recycle(database,statement);
+        }
+    }
 
-        return true;
+    /**
+     * Write a pending update of a record (must run inside a transaction), see updateRow
+     * @param database - the connection that holds the transaction
+     * @param id - the id of the record in the database
+     * @param mutation - the update to write
+     * @param currDate - the epoch-day of the update
+     * @param withRename - true to write the new log name too, false to write the rest of the update only
+     */
+    private void updateRow(SQLiteDatabase database, int id, RecordMutation mutation, long currDate, boolean withRename)
+    {
+        String logNameNew = withRename ? mutation.getLogName() : null;
+        byte[][] cipher = mutation.getCipher();
+        if(cipher == null)
+            updateRow(database,id,logNameNew,mutation.getUserName(),null,null,null,currDate);
+        else
+            updateRow(database,id,logNameNew,mutation.getUserName(),cipher[C.ENCRYPTED],cipher[C.IV],cipher[C.MAC],currDate);
     }
 
     /**
-     * Create an sql statement that can update the record and archive's password and iv fields.
-     * @param recordIdList - the record's id list
-     * @param archiveIdList - the archive's id list
-     * @return array size of 2, each entry is sql statement, index 0 = record update statement, index 1 for archive update.
+     * Write a list of pending record mutations (see WriteBehindQueue) in order, all in one transaction.
+     * a mutation that breaks the unique log name fails alone: an insert is not written, an update is written without its rename.
+     * @param mutations - the mutations to write, inserted records have a temporary id that is not written
+     * @param insertedIds - output, map between the temporary id of each inserted record and its id in the database
+     * @param rejected - output, the mutations that were not written (or written without their rename) since their log name is used
+     * @return true if all the mutations were written or rejected, false otherwise (nothing is written)
      */
-    private String[] createSqlFromLists(int[] recordIdList, int[] archiveIdList)
+    public boolean applyMutations(List<RecordMutation> mutations, Map<Integer, Integer> insertedIds, List<RecordMutation> rejected)
     {
-        String sqlRecords = "UPDATE LOGGER SET password = (case ";
-        String sqlRecordsIv = "end), iv = (case ";
+        return write(() -> {
+            SQLiteDatabase database = acquire();
+            long currDate = getCurrentDate();
 
-        for(int i = 0; i < recordIdList.length; i++)
-        {
-            sqlRecords += "when id=? then ? ";
-            sqlRecordsIv += "when id=? then ? ";
-        }
-        sqlRecords += sqlRecordsIv + "end)";
+            database.beginTransaction();
+            try
+            {
+                for(RecordMutation mutation : mutations)
+                {
+                    byte[][] cipher = mutation.getCipher();
+                    Integer insertedId = insertedIds.get(mutation.getId()); // a later mutation of a record inserted in this transaction
+                    int id = insertedId == null ? mutation.getId() : insertedId;
+                    switch (mutation.getOp())
+                    {
+                        case C.CHANGE_INSERT:
+                            SQLiteStatement insert = compile(database,SQL_INSERT_RECORD);
+                            try
+                            {
+                                bindRecord(insert,mutation.getLogName(),mutation.getUserName(),cipher[C.ENCRYPTED],cipher[C.IV],cipher[C.MAC],currDate);
+                                long nId = insert.executeInsert();
+                                if(nId == -1)
+                                    throw new SQLException("insert of " + mutation.getLogName() + " failed");
+                                insertedIds.put(mutation.getId(),(int)nId);
+                            }
+                            catch (SQLiteConstraintException e)
+                            {
+                                rejected.add(mutation); // the log name is used, only this statement is rolled back
+                            }
+                            finally
+                            {
+                                recycle(database,insert);
+                            }
+                            break;
+                        case C.CHANGE_UPDATE:
+                            if(id < 0) // its insert was rejected
+                                break;
+                            try
+                            {
+                                updateRow(database,id,mutation,currDate,true);
+                            }
+                            catch (SQLiteConstraintException e)
+                            {
+                                rejected.add(mutation); // the new log name is used, the rest of the update is still written
+                                updateRow(database,id,mutation,currDate,false);
+                            }
+                            break;
+                        case C.CHANGE_DELETE:
+                            if(id < 0)
+                                break;
+                            SQLiteStatement delete = compile(database,"DELETE FROM LOGGER WHERE id=?");
+                            delete.bindLong(1,id);
+                            delete.executeUpdateDelete();
+                            recycle(database,delete);
+                            break;
+                    }
+                }
+
+                database.setTransactionSuccessful();
+            }
+            catch (Exception e)
+            {
+                e.printStackTrace();
+                database.endTransaction();
+                release(database);
+                return false;
+            }
+            database.endTransaction();
+            release(database);
 
-        String sqlArchive = "UPDATE ARCHIVE SET password = (case ";
-        String sqlArchiveIv = "end), iv = (case ";
+            return true;
+        });
+    }
 
-        for(int i = 0; i < archiveIdList.length; i++)
+    /**
+     * Write the re-encrypted password, iv and mac of each given row with one reused statement (must run inside a transaction).
+     * the rows are written in chunks of C.REKEY_CHUNK_SIZE, and every chunk must update all of its rows.
+     * @param database - the connection that holds the transaction
+     * @param sql - update statement with the bindings (password, iv, mac, id)
+     * @param idList - the id's of the rows to update
+     * @param encryptedList - the re-encrypted password of each row
+     * @param ivList - the initial vector that was used to re-encrypt each row, null for a packed password
+     * @param macList - the keyed fingerprint of each row with the new mac key
+     * @throws SQLException - if a chunk did not update all of its rows
+     */
+    private void rekeyRows(SQLiteDatabase database, String sql, int[] idList, byte[][] encryptedList, byte[][] ivList, byte[][] macList) throws SQLException
+    {
+        SQLiteStatement statement = compile(database,sql);
+        try
         {
-            sqlArchive += "when id=? then ? ";
-            sqlArchiveIv += "when id=? then ? ";
+            for(int start = 0; start < idList.length; start += C.REKEY_CHUNK_SIZE)
+            {
+                int end = Math.min(start + C.REKEY_CHUNK_SIZE, idList.length);
+                int effectedRows = 0;
+
+                for(int i = start; i < end; i++)
+                {
+                    statement.bindBlob(1,encryptedList[i]);
+                    bindBlobOrNull(statement,2,ivList[i]);
+                    statement.bindBlob(3,macList[i]);
+                    statement.bindLong(4,idList[i]);
+                    effectedRows += statement.executeUpdateDelete();
+                }
+
+                if(effectedRows != end - start)
+                    throw new SQLException("re-key updated " + effectedRows + " of " + (end - start) + " rows");
+            }
+        }
+        finally
+        {
+            recycle(database,statement);
         }
-        sqlArchive += sqlArchiveIv + "end);";
-
-        return new String[]{sqlRecords,sqlArchive};
     }
 
     /**
-     * Make the update of the authentication key and all the data after re-encrypt, all in a transaction.
-     * @param hashed - the new hashed authentication key
+     * Make the update of the authentication key (the keys it replaces are deleted) and all the data after re-encrypt, all in a transaction.
+     * @param hashed - the verifier of the new authentication key
      * @param kSalt - the salt that was used to hash the new authentication key
+     * @param params - the key derivation function and parameters the new secret is derived with
      * @param recordIdList - a list of id's of the records in the database that their index correspond to the other records lists
      * @param encryptedRecordList - a list of the re-encrypted passwords of each record
-     * @param ivRecordList - a list of the initial vectors that was used to re-encrypted passwords of each record
+     * @param ivRecordList - a list of the initial vectors that was used to re-encrypted passwords of each record (null for a packed password)
+     * @param macRecordList - a list of the new keyed fingerprints of the passwords of each record
      * @param archiveIdList - a list of id's of the archives in the database that their index correspond to the other archives lists
      * @param encryptedArchiveList - a list of the re-encrypted passwords of each archives
-     * @param ivArchiveList - a list of the initial vectors that was used to re-encrypted passwords of each archives
+     * @param ivArchiveList - a list of the initial vectors that was used to re-encrypted passwords of each archives (null for a packed password)
+     * @param macArchiveList - a list of the new keyed fingerprints of the passwords of each archives
      * @return true if the update transaction was success, false otherwise
      */
-    public boolean updatePasswordsInDB(byte[] hashed, byte[] kSalt, int[] recordIdList, byte[][] encryptedRecordList, byte[][] ivRecordList, int[] archiveIdList, byte[][] encryptedArchiveList, byte[][] ivArchiveList)
+    public boolean updatePasswordsInDB(byte[] hashed, byte[] kSalt, KdfParams params, int[] recordIdList, byte[][] encryptedRecordList, byte[][] ivRecordList, byte[][] macRecordList, int[] archiveIdList, byte[][] encryptedArchiveList, byte[][] ivArchiveList, byte[][] macArchiveList)
     {
-        if(hashed == null || kSalt == null || recordIdList == null || encryptedRecordList == null || ivRecordList == null || archiveIdList == null || encryptedArchiveList == null || ivArchiveList == null)
-            return false;
-
-        if(recordIdList.length != encryptedRecordList.length || recordIdList.length != ivRecordList.length)
-            return false;
-
-        if(archiveIdList.length != encryptedArchiveList.length || archiveIdList.length != ivArchiveList.length)
-            return false;
+        return write(() -> {
+            if(hashed == null || kSalt == null || params == null || recordIdList == null || encryptedRecordList == null || ivRecordList == null || macRecordList == null || archiveIdList == null || encryptedArchiveList == null || ivArchiveList == null || macArchiveList == null)
+                return false;
 
-        SQLiteDatabase database = getWritableDatabase();
+            if(recordIdList.length != encryptedRecordList.length || recordIdList.length != ivRecordList.length || recordIdList.length != macRecordList.length)
+                return false;
 
-        database.beginTransaction();
-        try
-        {
-            // update key
-            String sql = "INSERT INTO PASSKEYS VALUES(NULL,?,?)";
-            SQLiteStatement statement = database.compileStatement(sql);
-            statement.clearBindings();
-            statement.bindBlob(1,kSalt);
-            statement.bindBlob(2,hashed);
-            statement.execute();
-            statement.close();
+            if(archiveIdList.length != encryptedArchiveList.length || archiveIdList.length != ivArchiveList.length || archiveIdList.length != macArchiveList.length)
+                return false;
 
-            String[] updateSQLs = createSqlFromLists(recordIdList,archiveIdList);
+            SQLiteDatabase database = acquire();
 
-            statement = database.compileStatement(updateSQLs[C.RECORDS]);
-            statement.clearBindings();
-
-            for(int i = 0; i < recordIdList.length; i++)
+            database.beginTransaction();
+            try
             {
-                statement.bindDouble(2 * i + 1, recordIdList[i]);
-                statement.bindBlob(2 * i + 2, encryptedRecordList[i]);
+                // update key
+                insertKey(database,hashed,kSalt,params);
 
-                statement.bindDouble(2 * i + 1 + (2 * recordIdList.length), recordIdList[i]);
-                statement.bindBlob(2 * i + 2 + (2 * recordIdList.length), ivRecordList[i]);
-            }
-            statement.execute();
-            statement.close();
-
-            statement = database.compileStatement(updateSQLs[C.ARCHIVE]);
-            statement.clearBindings();
+                rekeyRows(database,"UPDATE LOGGER SET password=?, iv=?, mac=? WHERE id=?",recordIdList,encryptedRecordList,ivRecordList,macRecordList);
+                rekeyRows(database,"UPDATE ARCHIVE SET password=?, iv=?, mac=? WHERE id=?",archiveIdList,encryptedArchiveList,ivArchiveList,macArchiveList);
 
-            for(int i = 0; i < archiveIdList.length; i++)
+                database.setTransactionSuccessful();
+            }
+            catch (Exception e)
             {
-                statement.bindDouble(2 * i + 1, archiveIdList[i]);
-                statement.bindBlob(2 * i + 2, encryptedArchiveList[i]);
-
-                statement.bindDouble(2 * i + 1 + (2 * archiveIdList.length), archiveIdList[i]);
-                statement.bindBlob(2 * i + 2 + (2 * archiveIdList.length), ivArchiveList[i]);
+                e.printStackTrace();
+                database.endTransaction();
+                release(database);
+                return false;
             }
-            statement.execute();
-            statement.close();
-
-            database.setTransactionSuccessful();
-        }
-        catch (Exception e)
-        {
-            e.printStackTrace();
             database.endTransaction();
-            database.close();
-            return false;
-        }
-        database.endTransaction();
-        database.close();
+            release(database);
 
-        return true;
+            return true;
+        });
     }
 }
@@ -0,0 +1,167 @@
+package smile.random.safelogger.logic;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import smile.random.safelogger.logic.models.KdfParams;
+
+/**
+ * Author : Assaf Attias
+ * scrypt key derivation (RFC 7914), memory-hard: every derivation fills and reads back 128 * r * N bytes,
+ * so guessing passwords in parallel costs memory and not only time.
+ * the cost is N (a power of two), the block size is r and the parallelism is p (the p lanes run one after another).
+ */
+public class ScryptKdf implements Kdf
+{
+    @Override
+    public SecretKey deriveKey(String password, byte[] salt, KdfParams params) throws GeneralSecurityException
+    {
+        byte[] key = scrypt(password.getBytes(StandardCharsets.UTF_8), salt, params.getCost(), params.getBlockSize(), params.getParallelism(), C.KEY_LEN / 8);
+        return new SecretKeySpec(key, C.KEY_ALGORITHM);
+    }
+
+    /**
+     * Derive a key with scrypt
+     * @param password - the password bytes
+     * @param salt - the salt
+     * @param n - the cpu/memory cost, a power of two greater than 1
+     * @param r - the block size
+     * @param p - the parallelism
+     * @param length - the length of the derived key in bytes
+     * @return the derived key
+     * @throws GeneralSecurityException
+     */
+    public static byte[] scrypt(byte[] password, byte[] salt, int n, int r, int p, int length) throws GeneralSecurityException
+    {
+        if(n < 2 || (n & (n - 1)) != 0 || r < 1 || p < 1)
+            throw new IllegalArgumentException("invalid scrypt parameters");
+
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(password, "HmacSHA256"));
+
+        int words = 32 * r; // ints in a block of 128 * r bytes
+        byte[] b = pbkdf2(mac, salt, p * 128 * r);
+
+        int[] x = new int[words];
+        int[] y = new int[words];
+        int[] v = new int[words * n];
+        int[] t = new int[16];
+        int[] s = new int[16];
+        for(int i = 0; i < p; i++)
+        {
+            int offset = i * 128 * r;
+            for(int k = 0; k < words; k++)
+                x[k] = (b[offset + 4 * k] & 0xff) | (b[offset + 4 * k + 1] & 0xff) << 8 | (b[offset + 4 * k + 2] & 0xff) << 16 | (b[offset + 4 * k + 3] & 0xff) << 24;
+
+            // ROMix
+            for(int j = 0; j < n; j++)
+            {
+                System.arraycopy(x, 0, v, j * words, words);
+                blockMix(x, y, t, s, r);
+            }
+            for(int j = 0; j < n; j++)
+            {
+                int index = (x[(2 * r - 1) * 16] & (n - 1)) * words; // integerify
+                for(int k = 0; k < words; k++)
+                    x[k] ^= v[index + k];
+                blockMix(x, y, t, s, r);
+            }
+
+            for(int k = 0; k < words; k++)
+            {
+                b[offset + 4 * k] = (byte)x[k];
+                b[offset + 4 * k + 1] = (byte)(x[k] >>> 8);
+                b[offset + 4 * k + 2] = (byte)(x[k] >>> 16);
+                b[offset + 4 * k + 3] = (byte)(x[k] >>> 24);
+            }
+        }
+        Arrays.fill(v, 0);
+
+        return pbkdf2(mac, b, length);
+    }
+
+    /**
+     * PBKDF2 with one iteration (as used by scrypt)
+     * @param mac - HMAC-SHA256 keyed with the password
+     * @param salt - the salt
+     * @param length - the length of the output in bytes
+     * @return the derived bytes
+     */
+    private static byte[] pbkdf2(Mac mac, byte[] salt, int length)
+    {
+        byte[] out = new byte[length];
+        int hLen = mac.getMacLength();
+        for(int block = 1, offset = 0; offset < length; block++, offset += hLen)
+        {
+            mac.update(salt);
+            mac.update(new byte[]{(byte)(block >>> 24), (byte)(block >>> 16), (byte)(block >>> 8), (byte)block});
+            byte[] u = mac.doFinal();
+            System.arraycopy(u, 0, out, offset, Math.min(hLen, length - offset));
+        }
+        return out;
+    }
+
+    /**
+     * scrypt BlockMix with Salsa20/8, in place
+     * @param b - the block of 2 * r sub-blocks of 16 ints
+     * @param y - scratch of the block size
+     * @param t - scratch of 16 ints
+     * @param s - scratch of 16 ints
+     * @param r - the block size
+     */
+    private static void blockMix(int[] b, int[] y, int[] t, int[] s, int r)
+    {
+        System.arraycopy(b, (2 * r - 1) * 16, t, 0, 16);
+        for(int i = 0; i < 2 * r; i++)
+        {
+            for(int k = 0; k < 16; k++)
+                t[k] ^= b[i * 16 + k];
+            salsa8(t, s);
+            System.arraycopy(t, 0, y, i * 16, 16);
+        }
+        // even sub-blocks first, then the odd ones
+        for(int i = 0; i < r; i++)
+        {
+            System.arraycopy(y, 2 * i * 16, b, i * 16, 16);
+            System.arraycopy(y, (2 * i + 1) * 16, b, (r + i) * 16, 16);
+        }
+    }
+
+    /**
+     * Salsa20/8 core, in place
+     * @param b - 16 ints to transform
+     * @param x - scratch of 16 ints
+     */
+    private static void salsa8(int[] b, int[] x)
+    {
+        System.arraycopy(b, 0, x, 0, 16);
+        for(int i = 0; i < 8; i += 2)
+        {
+            // columns
+            x[ 4] ^= Integer.rotateLeft(x[ 0] + x[12],  7);  x[ 8] ^= Integer.rotateLeft(x[ 4] + x[ 0],  9);
+            x[12] ^= Integer.rotateLeft(x[ 8] + x[ 4], 13);  x[ 0] ^= Integer.rotateLeft(x[12] + x[ 8], 18);
+            x[ 9] ^= Integer.rotateLeft(x[ 5] + x[ 1],  7);  x[13] ^= Integer.rotateLeft(x[ 9] + x[ 5],  9);
+            x[ 1] ^= Integer.rotateLeft(x[13] + x[ 9], 13);  x[ 5] ^= Integer.rotateLeft(x[ 1] + x[13], 18);
+            x[14] ^= Integer.rotateLeft(x[10] + x[ 6],  7);  x[ 2] ^= Integer.rotateLeft(x[14] + x[10],  9);
+            x[ 6] ^= Integer.rotateLeft(x[ 2] + x[14], 13);  x[10] ^= Integer.rotateLeft(x[ 6] + x[ 2], 18);
+            x[ 3] ^= Integer.rotateLeft(x[15] + x[11],  7);  x[ 7] ^= Integer.rotateLeft(x[ 3] + x[15],  9);
+            x[11] ^= Integer.rotateLeft(x[ 7] + x[ 3], 13);  x[15] ^= Integer.rotateLeft(x[11] + x[ 7], 18);
+            // rows
+            x[ 1] ^= Integer.rotateLeft(x[ 0] + x[ 3],  7);  x[ 2] ^= Integer.rotateLeft(x[ 1] + x[ 0],  9);
+            x[ 3] ^= Integer.rotateLeft(x[ 2] + x[ 1], 13);  x[ 0] ^= Integer.rotateLeft(x[ 3] + x[ 2], 18);
+            x[ 6] ^= Integer.rotateLeft(x[ 5] + x[ 4],  7);  x[ 7] ^= Integer.rotateLeft(x[ 6] + x[ 5],  9);
+            x[ 4] ^= Integer.rotateLeft(x[ 7] + x[ 6], 13);  x[ 5] ^= Integer.rotateLeft(x[ 4] + x[ 7], 18);
+            x[11] ^= Integer.rotateLeft(x[10] + x[ 9],  7);  x[ 8] ^= Integer.rotateLeft(x[11] + x[10],  9);
+            x[ 9] ^= Integer.rotateLeft(x[ 8] + x[11], 13);  x[10] ^= Integer.rotateLeft(x[ 9] + x[ 8], 18);
+            x[12] ^= Integer.rotateLeft(x[15] + x[14],  7);  x[13] ^= Integer.rotateLeft(x[12] + x[15],  9);
+            x[14] ^= Integer.rotateLeft(x[13] + x[12], 13);  x[15] ^= Integer.rotateLeft(x[14] + x[13], 18);
+        }
+        for(int i = 0; i < 16; i++)
+            b[i] += x[i];
+    }
+}
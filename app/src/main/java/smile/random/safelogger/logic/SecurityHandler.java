@@ -4,6 +4,7 @@ import android.os.Build;
 import android.support.annotation.RequiresApi;
 
 import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.MessageDigest;
@@ -11,35 +12,69 @@ import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.KeySpec;
+import java.util.Arrays;
 
+import javax.crypto.AEADBadTagException;
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.Mac;
 import javax.crypto.NoSuchPaddingException;
 import javax.crypto.SecretKey;
 import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.PBEKeySpec;
 import javax.crypto.spec.SecretKeySpec;
 
+import smile.random.safelogger.logic.models.KdfParams;
+
 /**
  * Author : Assaf Attias
  * Handles All Security algorithms (Hash,Encrypt,Decrypt)
  */
 public class SecurityHandler {
 
+    // engine instances are not thread safe and costly to get (provider lookup), each thread keeps its own and re-initializes it per use
+    private static final ThreadLocal<Cipher> ciphers = new ThreadLocal<>();
+    private static final ThreadLocal<Cipher> aeadCiphers = new ThreadLocal<>();
+    private static final ThreadLocal<MessageDigest> digests = new ThreadLocal<>();
+    private static final ThreadLocal<Mac> macs = new ThreadLocal<>();
+
+    private static final SecureRandom random = new SecureRandom(); // thread safe, seeded once
+    private static volatile int targetIterations = 0; // calibrated key derivation cost, 0 if not calibrated yet
+
+    private static final Kdf pbkdf2 = new Pbkdf2Kdf();
+    private static final Kdf scrypt = new ScryptKdf();
+
     /**
      * Generate new random bytes as str representation (for salt/iv)
      * @return byte array of random bytes
      */
     public static byte[] generateRandomBytes()
     {
-        SecureRandom random = new SecureRandom();
         byte[] gen = new byte[C.BLOCK_SIZE];
         random.nextBytes(gen);
         return gen;
     }
 
+    /**
+     * Generate many initial vectors (or nonces) at once, the random bytes of all of them are generated into one buffer
+     * @param count - the number of initial vectors to generate
+     * @param size - the size of each initial vector in bytes (C.BLOCK_SIZE, C.NONCE_SIZE)
+     * @return array of random initial vectors
+     */
+    public static byte[][] generateIvs(int count, int size)
+    {
+        byte[] buffer = new byte[count * size];
+        random.nextBytes(buffer);
+
+        byte[][] ivs = new byte[count][];
+        for(int i = 0; i < count; i++)
+            ivs[i] = Arrays.copyOfRange(buffer, i * size, (i + 1) * size);
+        return ivs;
+    }
+
     /**
      * digest a msg with a salt into a hash representation
      * @param msg - plain txt to digest
@@ -48,7 +83,13 @@ public class SecurityHandler {
      * @throws NoSuchAlgorithmException
      */
     public static byte[] hash(String msg, byte[] salt) throws NoSuchAlgorithmException {
-        MessageDigest md = MessageDigest.getInstance(C.HASH_ALGORITHM);
+        MessageDigest md = digests.get();
+        if(md == null)
+        {
+            md = MessageDigest.getInstance(C.HASH_ALGORITHM);
+            digests.set(md);
+        }
+        md.reset(); // in case a previous digest did not finish
         md.update(salt); // update salt to digest with
         byte[] hashedPassword = md.digest(msg.getBytes(StandardCharsets.UTF_8));
         return hashedPassword;
@@ -58,21 +99,226 @@ public class SecurityHandler {
      * Generate a secret key from a given password and a salt using encryption
      * @param password - plain txt password to generate secret key from
      * @param salt - salt to add into the key
+     * @param iterations - the number of iterations of the derivation (see getTargetIterations)
      * @return a secret key generated from a password
      * @throws NoSuchAlgorithmException
      * @throws InvalidKeySpecException
      */
-    public static SecretKey getKeyFromPassword(String password, byte[] salt)
+    public static SecretKey getKeyFromPassword(String password, byte[] salt, int iterations)
             throws NoSuchAlgorithmException, InvalidKeySpecException {
 
         SecretKeyFactory factory = SecretKeyFactory.getInstance(C.ENC_KEY_ALGORITHM);
-        KeySpec spec = new PBEKeySpec(password.toCharArray(), salt, C.STR_PARAM, C.KEY_LEN);
+        KeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, C.KEY_LEN);
         SecretKey secret = new SecretKeySpec(factory.generateSecret(spec).getEncoded(), C.KEY_ALGORITHM);
         return secret;
     }
 
     /**
-     * Encrypt a plain txt with a secret key and initialization vector
+     * Get the number of iterations that derives a key in about C.KDF_TARGET_MILLIS on this device.
+     * calibrated on first use (see calibrateIterations) and kept for the rest of the process.
+     * @return the number of iterations to derive new keys with, at least C.STR_PARAM
+     * @throws NoSuchAlgorithmException
+     * @throws InvalidKeySpecException
+     */
+    public static int getTargetIterations() throws NoSuchAlgorithmException, InvalidKeySpecException
+    {
+        if(targetIterations == 0)
+            targetIterations = calibrateIterations(C.KDF_TARGET_MILLIS);
+        return targetIterations;
+    }
+
+    /**
+     * Time the key derivation on this device and find the number of iterations that takes a given time.
+     * the result is rounded down to a power of two, so small timing noise does not change it (and cause a rehash).
+     * @param targetMillis - the time one key derivation should take
+     * @return the number of iterations, at least C.STR_PARAM
+     * @throws NoSuchAlgorithmException
+     * @throws InvalidKeySpecException
+     */
+    public static int calibrateIterations(long targetMillis) throws NoSuchAlgorithmException, InvalidKeySpecException
+    {
+        byte[] salt = generateRandomBytes();
+        long best = Long.MAX_VALUE;
+        for(int i = 0; i < 2; i++) // the first run also pays for the provider lookup, take the fastest
+        {
+            long start = System.nanoTime();
+            getKeyFromPassword("calibration", salt, C.KDF_CALIBRATION_ITERATIONS);
+            best = Math.min(best, System.nanoTime() - start);
+        }
+
+        long iterations = C.KDF_CALIBRATION_ITERATIONS * (targetMillis * 1000000L) / Math.max(best, 1);
+        iterations = Math.min(iterations, Integer.MAX_VALUE);
+        return Math.max(C.STR_PARAM, Integer.highestOneBit((int)iterations));
+    }
+
+    /**
+     * Get the implementation of a given key derivation function
+     * @param kdf - the key derivation function (C.KDF_PBKDF2_SHA512, C.KDF_PBKDF2, C.KDF_SCRYPT)
+     * @return the key derivation function
+     */
+    public static Kdf getKdf(int kdf)
+    {
+        switch (kdf)
+        {
+            case C.KDF_PBKDF2_SHA512:
+            case C.KDF_PBKDF2:
+                return pbkdf2;
+            case C.KDF_SCRYPT:
+                return scrypt;
+            default:
+                throw new IllegalArgumentException("unknown key derivation function " + kdf);
+        }
+    }
+
+    /**
+     * Get the key derivation function and parameters to derive new keys with (see C.KDF)
+     * @return the parameters of new keys, PBKDF2 iterations are calibrated to this device (see getTargetIterations)
+     * @throws NoSuchAlgorithmException
+     * @throws InvalidKeySpecException
+     */
+    public static KdfParams getTargetParams() throws NoSuchAlgorithmException, InvalidKeySpecException
+    {
+        if(C.KDF == C.KDF_SCRYPT)
+            return new KdfParams(C.KDF_SCRYPT, C.SCRYPT_COST, C.SCRYPT_BLOCK_SIZE, C.SCRYPT_PARALLELISM);
+        return new KdfParams(C.KDF_PBKDF2, getTargetIterations(), 0, 0);
+    }
+
+    /**
+     * Derive the secret key of a given password with a given key derivation function
+     * @param password - plain txt password to derive the secret from
+     * @param salt - salt of the key
+     * @param params - the key derivation function and its parameters
+     * @return the secret key
+     * @throws GeneralSecurityException
+     */
+    public static SecretKey deriveKey(String password, byte[] salt, KdfParams params) throws GeneralSecurityException
+    {
+        return getKdf(params.getKdf()).deriveKey(password, salt, params);
+    }
+
+    /**
+     * Calculate the verifier of a secret key, saved instead of the key to check the password on login.
+     * it can be calculated only after the (costly) key derivation, so guessing the password costs a derivation per guess.
+     * @param secret - the secret key derived from the password
+     * @return the verifier of the secret
+     * @throws NoSuchAlgorithmException
+     * @throws InvalidKeyException
+     */
+    public static byte[] getVerifier(SecretKey secret) throws NoSuchAlgorithmException, InvalidKeyException
+    {
+        Mac mac = Mac.getInstance(C.MAC_ALGORITHM);
+        mac.init(new SecretKeySpec(secret.getEncoded(), C.MAC_ALGORITHM));
+        return mac.doFinal(C.VERIFIER_LABEL.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Check a password against a saved key and derive its secret
+     * @param password - plain txt password to check
+     * @param salt - salt of the saved key
+     * @param verifier - the saved verifier (a salted hash of the password for C.KDF_PBKDF2_SHA512 keys)
+     * @param params - the key derivation function and parameters of the saved key
+     * @return the secret key of the password, null if the password does not match
+     * @throws GeneralSecurityException
+     */
+    public static SecretKey verifyKey(String password, byte[] salt, byte[] verifier, KdfParams params) throws GeneralSecurityException
+    {
+        if(params.getKdf() == C.KDF_PBKDF2_SHA512) // the password is checked before the derivation
+            return MessageDigest.isEqual(verifier, hash(password, salt)) ? deriveKey(password, salt, params) : null;
+
+        SecretKey secret = deriveKey(password, salt, params);
+        return MessageDigest.isEqual(verifier, getVerifier(secret)) ? secret : null;
+    }
+
+    /**
+     * Derive the key used to calculate password macs from the secret key (the secret itself is used only for encryption)
+     * @param secret - the secret key generated from the user password
+     * @return the mac key
+     * @throws NoSuchAlgorithmException
+     * @throws InvalidKeyException
+     */
+    public static SecretKey getMacKey(SecretKey secret) throws NoSuchAlgorithmException, InvalidKeyException
+    {
+        Mac mac = Mac.getInstance(C.MAC_ALGORITHM);
+        mac.init(new SecretKeySpec(secret.getEncoded(), C.MAC_ALGORITHM));
+        byte[] macKey = mac.doFinal(C.MAC_KEY_LABEL.getBytes(StandardCharsets.UTF_8));
+        return new SecretKeySpec(macKey, C.MAC_ALGORITHM);
+    }
+
+    /**
+     * Create a new mac instance initialized with a given mac key, a mac instance is not thread safe
+     * @param macKey - the key to calculate macs with (see getMacKey)
+     * @return new mac instance
+     * @throws NoSuchAlgorithmException
+     * @throws InvalidKeyException
+     */
+    public static Mac newMac(SecretKey macKey) throws NoSuchAlgorithmException, InvalidKeyException
+    {
+        Mac mac = Mac.getInstance(C.MAC_ALGORITHM);
+        mac.init(macKey);
+        return mac;
+    }
+
+    /**
+     * Calculate the keyed fingerprint (mac) of a plain txt password, equal passwords have equal macs
+     * @param plain - password to calculate its mac
+     * @param macKey - the key to calculate the mac with (see getMacKey)
+     * @return mac of the password
+     * @throws NoSuchAlgorithmException
+     * @throws InvalidKeyException
+     */
+    public static byte[] mac(String plain, SecretKey macKey) throws NoSuchAlgorithmException, InvalidKeyException
+    {
+        Mac mac = macs.get();
+        if(mac == null)
+        {
+            mac = Mac.getInstance(C.MAC_ALGORITHM);
+            macs.set(mac);
+        }
+        mac.init(macKey);
+        return mac(mac, plain);
+    }
+
+    /**
+     * Calculate the keyed fingerprint (mac) of a plain txt password, using a given mac instance
+     * @param mac - initialized mac instance (see newMac)
+     * @param plain - password to calculate its mac
+     * @return mac of the password
+     */
+    public static byte[] mac(Mac mac, String plain)
+    {
+        return mac.doFinal(plain.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Create a new cipher instance of the encryption algorithm, a cipher instance is not thread safe
+     * @return new cipher instance
+     * @throws NoSuchPaddingException
+     * @throws NoSuchAlgorithmException
+     */
+    public static Cipher newCipher() throws NoSuchPaddingException, NoSuchAlgorithmException
+    {
+        return Cipher.getInstance(C.ENC_ALGORITHM);
+    }
+
+    /**
+     * Get the cipher instance of the current thread, created on first use and re-initialized by every encrypt/decrypt
+     * @return the cipher instance of the current thread
+     * @throws NoSuchPaddingException
+     * @throws NoSuchAlgorithmException
+     */
+    private static Cipher threadCipher() throws NoSuchPaddingException, NoSuchAlgorithmException
+    {
+        Cipher cipher = ciphers.get();
+        if(cipher == null)
+        {
+            cipher = newCipher();
+            ciphers.set(cipher);
+        }
+        return cipher;
+    }
+
+    /**
+     * Encrypt a plain txt with a secret key and initialization vector, using the cipher instance of the current thread
      * @param plain - txt to encrypt
      * @param key - secret to encrypt with
      * @param sIv - initialization vector to encrypt with
@@ -86,9 +332,26 @@ public class SecurityHandler {
      */
     @RequiresApi(api = Build.VERSION_CODES.O)
     public static byte[] encrypt(String plain, SecretKey key, byte[] sIv) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException
+    {
+        return encrypt(threadCipher(), plain, key, sIv);
+    }
+
+    /**
+     * Encrypt a plain txt with a secret key and initialization vector, using a given cipher instance
+     * (the cipher is re-initialized, so one instance can be reused by the same thread for many passwords)
+     * @param cipher - cipher instance to encrypt with (see newCipher)
+     * @param plain - txt to encrypt
+     * @param key - secret to encrypt with
+     * @param sIv - initialization vector to encrypt with
+     * @return cipher, encrypted txt
+     * @throws InvalidAlgorithmParameterException
+     * @throws InvalidKeyException
+     * @throws BadPaddingException
+     * @throws IllegalBlockSizeException
+     */
+    public static byte[] encrypt(Cipher cipher, String plain, SecretKey key, byte[] sIv) throws InvalidAlgorithmParameterException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException
     {
         IvParameterSpec iv = new IvParameterSpec(sIv); // init vector
-        Cipher cipher = Cipher.getInstance(C.ENC_ALGORITHM);
         cipher.init(Cipher.ENCRYPT_MODE, key, iv);
         byte[] cipherText = cipher.doFinal(plain.getBytes());
         //Base64.getEncoder().encodeToString(cipherText);
@@ -96,7 +359,7 @@ public class SecurityHandler {
     }
 
     /**
-     * Decrypt a given cipher with a secret and initialization vector
+     * Decrypt a given cipher with a secret and initialization vector, using the cipher instance of the current thread
      * @param cipherText - cipher to decrypt
      * @param key - secret to decrypt with
      * @param sIv - initialization vector to decrypt with
@@ -110,12 +373,122 @@ public class SecurityHandler {
      */
     @RequiresApi(api = Build.VERSION_CODES.O)
     public static String decrypt(byte[] cipherText, SecretKey key, byte[] sIv) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException
+    {
+        return decrypt(threadCipher(), cipherText, key, sIv);
+    }
+
+    /**
+     * Decrypt a given cipher with a secret and initialization vector, using a given cipher instance
+     * (the cipher is re-initialized, so one instance can be reused by the same thread for many passwords)
+     * @param cipher - cipher instance to decrypt with (see newCipher)
+     * @param cipherText - cipher to decrypt
+     * @param key - secret to decrypt with
+     * @param sIv - initialization vector to decrypt with
+     * @return plain txt
+     * @throws InvalidAlgorithmParameterException
+     * @throws InvalidKeyException
+     * @throws BadPaddingException
+     * @throws IllegalBlockSizeException
+     */
+    public static String decrypt(Cipher cipher, byte[] cipherText, SecretKey key, byte[] sIv) throws InvalidAlgorithmParameterException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException
     {
         IvParameterSpec iv = new IvParameterSpec(sIv); // init vector
-        Cipher cipher = Cipher.getInstance(C.ENC_ALGORITHM);
         cipher.init(Cipher.DECRYPT_MODE, key, iv);
         byte[] plainText = cipher.doFinal(cipherText);
         //byte[] plainText = cipher.doFinal(Base64.getDecoder().decode(cipherText));
         return new String(plainText);
     }
+
+    /**
+     * Encrypt a password into the packed record format with a new random nonce, see encryptRecord(String, SecretKey, byte[])
+     * @param plain - password to encrypt
+     * @param key - secret to encrypt with
+     * @return the packed encrypted password
+     * @throws GeneralSecurityException
+     */
+    public static byte[] encryptRecord(String plain, SecretKey key) throws GeneralSecurityException
+    {
+        byte[] nonce = new byte[C.NONCE_SIZE];
+        random.nextBytes(nonce);
+        return encryptRecord(plain, key, nonce);
+    }
+
+    /**
+     * Encrypt a password into the packed record format (AES/GCM): a header byte (C.RECORD_FORMAT_GCM), the nonce,
+     * and the encrypted password followed by its authentication tag, all in one array (saved without initial vector).
+     * the header is authenticated with the password (additional authenticated data). uses the cipher instance of the current thread.
+     * @param plain - password to encrypt
+     * @param key - secret to encrypt with
+     * @param nonce - a nonce of C.NONCE_SIZE bytes that was never used with this key
+     * @return the packed encrypted password
+     * @throws GeneralSecurityException
+     */
+    public static byte[] encryptRecord(String plain, SecretKey key, byte[] nonce) throws GeneralSecurityException
+    {
+        Cipher cipher = threadAeadCipher();
+        cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(C.TAG_LEN, nonce));
+        byte[] input = plain.getBytes(StandardCharsets.UTF_8);
+
+        byte[] packed = new byte[C.RECORD_HEADER_SIZE + C.NONCE_SIZE + cipher.getOutputSize(input.length)];
+        packed[0] = C.RECORD_FORMAT_GCM;
+        System.arraycopy(nonce, 0, packed, C.RECORD_HEADER_SIZE, C.NONCE_SIZE);
+        cipher.updateAAD(packed, 0, C.RECORD_HEADER_SIZE);
+        cipher.doFinal(input, 0, input.length, packed, C.RECORD_HEADER_SIZE + C.NONCE_SIZE);
+        return packed;
+    }
+
+    /**
+     * Decrypt a record password, the format is taken from its header byte: packed (see encryptRecord) or the old AES/CBC format.
+     * a packed password that was changed fails on its authentication tag (the header too), setting an initial vector does not change its format.
+     * the old format is not authenticated, so it is accepted only while old format passwords may exist (see StoredKey.getRecordFormat).
+     * uses the cipher instances of the current thread.
+     * @param encrypted - the encrypted password
+     * @param key - secret to decrypt with
+     * @param sIv - the initial vector of an old format password, null for a packed password
+     * @param legacy - true if old format passwords are accepted, false otherwise
+     * @return plain txt
+     * @throws GeneralSecurityException - if the password was changed or its format is not accepted
+     */
+    public static String decryptRecord(byte[] encrypted, SecretKey key, byte[] sIv, boolean legacy) throws GeneralSecurityException
+    {
+        int offset = C.RECORD_HEADER_SIZE + C.NONCE_SIZE;
+        if(encrypted.length >= offset + C.TAG_LEN / 8 && encrypted[0] == C.RECORD_FORMAT_GCM)
+        {
+            try
+            {
+                Cipher cipher = threadAeadCipher();
+                cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(C.TAG_LEN, encrypted, C.RECORD_HEADER_SIZE, C.NONCE_SIZE));
+                cipher.updateAAD(encrypted, 0, C.RECORD_HEADER_SIZE);
+                byte[] plainText = cipher.doFinal(encrypted, offset, encrypted.length - offset);
+                return new String(plainText, StandardCharsets.UTF_8);
+            }
+            catch (AEADBadTagException e)
+            {
+                if(!legacy || sIv == null) // an old format password may start with the header byte by chance
+                    throw e;
+            }
+        }
+
+        if(!legacy || sIv == null)
+            throw new GeneralSecurityException("record format not accepted");
+
+        return decrypt(threadCipher(), encrypted, key, sIv);
+    }
+
+    /**
+     * Get the AES/GCM cipher instance of the current thread, created on first use and re-initialized by every use
+     * @return the cipher instance of the current thread
+     * @throws NoSuchPaddingException
+     * @throws NoSuchAlgorithmException
+     */
+    private static Cipher threadAeadCipher() throws NoSuchPaddingException, NoSuchAlgorithmException
+    {
+        Cipher cipher = aeadCiphers.get();
+        if(cipher == null)
+        {
+            cipher = Cipher.getInstance(C.AEAD_ALGORITHM);
+            aeadCiphers.set(cipher);
+        }
+        return cipher;
+    }
 }
@@ -0,0 +1,246 @@
+package smile.random.safelogger.logic;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+import smile.random.safelogger.logic.models.RecordMutation;
+
+/**
+ * Author : Assaf Attias
+ * Holds record mutations (insert/update/delete) that were already applied in memory and writes them to the DB later,
+ * all the pending mutations are written together in one transaction (see SQLHandler.applyMutations).
+ * successive mutations of the same record are merged, a record that is inserted and removed is never written.
+ * a rename is merged only into the last pending mutation, otherwise it is written in its order after the mutations of the other records
+ * (the log names are unique, a rename must not pass the rename that released its name).
+ *
+ * Durability:
+ * *    a mutation is written at most C.WRITE_BEHIND_DELAY milliseconds after it was added,
+ *      or right away when C.WRITE_BEHIND_MAX mutations are pending, or when flush is called (log off).
+ * *    until it is written a mutation exists only in memory, it is lost if the process is killed.
+ * *    a flush writes all or nothing, on failure the mutations stay pending and the flush is scheduled again (C.WRITE_BEHIND_DELAY).
+ * *    a mutation the DB rejects (a log name that is used) is not tried again, the rest of the mutations are written
+ *      and the rejected ones are reported to the onFlush callback.
+ * *    merged password updates archive only the password that is in the DB, the passwords in between are not archived.
+ */
+public class WriteBehindQueue
+{
+    private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(runnable -> new Thread(runnable,"WriteBehindQueue-flush"));
+
+    private final SQLHandler db;
+    private final BiConsumer<Map<Integer, Integer>, List<RecordMutation>> onFlush;
+
+    private List<RecordMutation> pending = new ArrayList<>(); // in the order of writing
+    private Map<Integer, RecordMutation> latest = new HashMap<>(); // record id -> its last pending mutation
+    private final Map<Integer, Integer> resolved = new ConcurrentHashMap<>(); // temporary id -> id of the written inserts, read without the queue lock
+    private int nextTempId = -1;
+    private boolean scheduled = false;
+
+    /**
+     * Constructor
+     * @param db - the database to write the mutations into
+     * @param onFlush - called after the mutations were written, with a map between the temporary id of each inserted record and its id,
+     *                and the mutations the DB rejected (not written)
+     */
+    public WriteBehindQueue(SQLHandler db, BiConsumer<Map<Integer, Integer>, List<RecordMutation>> onFlush)
+    {
+        this.db = db;
+        this.onFlush = onFlush;
+    }
+
+    /**
+     * Add a new record
+     * @param logName - the name of the log
+     * @param userName - the user-name used in the log
+     * @param cipher - the encrypted password, its initial vector and its mac (C.ENCRYPTED, C.IV, C.MAC)
+     * @return the temporary (negative) id of the record, used until the record is written
+     */
+    public synchronized int insert(String logName, String userName, byte[][] cipher)
+    {
+        int id = this.nextTempId--;
+        append(new RecordMutation(id, C.CHANGE_INSERT, logName, userName, cipher));
+        added();
+        return id;
+    }
+
+    /**
+     * Update a record (a written one or a pending insert), null fields are not changed
+     * @param id - the id of the record
+     * @param logNameNew - the new log name, null if not changed
+     * @param userNameNew - the new user-name, null if not changed
+     * @param cipher - the new encrypted password, its initial vector and its mac, null if not changed
+     */
+    public synchronized void update(int id, String logNameNew, String userNameNew, byte[][] cipher)
+    {
+        id = resolve(id);
+        RecordMutation mutation = this.latest.get(id);
+
+        // merging moves the rename back to the record last mutation, it must not pass the mutations of other records
+        if(mutation != null && logNameNew != null && mutation != last())
+            mutation = null;
+
+        if(mutation == null)
+            append(new RecordMutation(id, C.CHANGE_UPDATE, logNameNew, userNameNew, cipher));
+        else if(mutation.getOp() != C.CHANGE_DELETE)
+            mutation.merge(logNameNew, userNameNew, cipher);
+        added();
+    }
+
+    /**
+     * Remove a record (a written one or a pending insert)
+     * @param id - the id of the record
+     */
+    public synchronized void delete(int id)
+    {
+        int recordId = resolve(id);
+        RecordMutation mutation = this.latest.get(recordId);
+
+        if(recordId < 0)
+        {
+            // never written
+            this.pending.removeIf(pendingMutation -> pendingMutation.getId() == recordId);
+            this.latest.remove(recordId);
+        }
+        else if(mutation == null)
+            append(new RecordMutation(recordId, C.CHANGE_DELETE, null, null, null));
+        else
+            mutation.delete(); // a removal can move back, it only releases the log name earlier
+        added();
+    }
+
+    /**
+     * Get the pending encrypted password of a record
+     * @param id - the id of the record
+     * @return the encrypted password, its initial vector and its mac (C.ENCRYPTED, C.IV, C.MAC), null if its password is not pending
+     */
+    public synchronized byte[][] getCipher(int id)
+    {
+        id = resolve(id);
+        RecordMutation mutation = this.latest.get(id);
+        if(mutation == null || mutation.getOp() == C.CHANGE_DELETE)
+            return null;
+
+        for(int i = this.pending.size() - 1; i >= 0; i--)
+        {
+            mutation = this.pending.get(i);
+            if(mutation.getId() == id && mutation.getCipher() != null)
+                return mutation.getCipher();
+        }
+        return null;
+    }
+
+    /**
+     * Check if a record has a pending mutation
+     * @param id - the id of the record
+     * @return true if the record has a mutation that was not written yet, false otherwise
+     */
+    public synchronized boolean isPending(int id)
+    {
+        return this.latest.containsKey(resolve(id));
+    }
+
+    /**
+     * Get the id of a record in the database, a record that was inserted with a temporary id keeps it until the list is reloaded.
+     * does not wait for a flush that is being written.
+     * @param id - the (temporary) id of the record
+     * @return the id of the written record, the given id if it is not a written temporary id
+     */
+    public int resolve(int id)
+    {
+        Integer written = this.resolved.get(id);
+        return written == null ? id : written;
+    }
+
+    /**
+     * Check if a password with a given mac is a pending password of any record
+     * @param mac - the keyed fingerprint of the password
+     * @return true if a pending mutation has this password, false otherwise
+     */
+    public synchronized boolean hasMac(byte[] mac)
+    {
+        for(RecordMutation mutation : this.pending)
+        {
+            if(mutation.getCipher() != null && Arrays.equals(mutation.getCipher()[C.MAC], mac))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Write all the pending mutations to the DB in one transaction, the mutations the DB rejects are reported and not tried again
+     * @return true if all the mutations are written or rejected, false otherwise (they stay pending)
+     */
+    public synchronized boolean flush()
+    {
+        this.scheduled = false;
+        if(this.pending.isEmpty())
+            return true;
+
+        List<RecordMutation> mutations = new ArrayList<>(this.pending);
+        Map<Integer, Integer> insertedIds = new HashMap<>();
+        List<RecordMutation> rejected = new ArrayList<>();
+        if(!this.db.applyMutations(mutations, insertedIds, rejected))
+        {
+            schedule(); // tried again later, the mutations stay pending
+            return false;
+        }
+
+        this.pending = new ArrayList<>();
+        this.latest = new HashMap<>();
+        this.resolved.putAll(insertedIds);
+        this.onFlush.accept(insertedIds, rejected);
+        return true;
+    }
+
+    /**
+     * Add a mutation after all the pending mutations
+     * @param mutation - the mutation to add
+     */
+    private void append(RecordMutation mutation)
+    {
+        this.pending.add(mutation);
+        this.latest.put(mutation.getId(), mutation);
+    }
+
+    /**
+     * Get the last pending mutation
+     * @return the mutation that was added last, null if none is pending
+     */
+    private RecordMutation last()
+    {
+        return this.pending.isEmpty() ? null : this.pending.get(this.pending.size() - 1);
+    }
+
+    /**
+     * Schedule the flush after a mutation was added, right away if too many mutations are pending
+     */
+    private void added()
+    {
+        if(this.pending.size() >= C.WRITE_BEHIND_MAX)
+        {
+            timer.execute(this::flush);
+            this.scheduled = true;
+        }
+        else
+            schedule();
+    }
+
+    /**
+     * Schedule a flush in C.WRITE_BEHIND_DELAY milliseconds, if none is scheduled
+     */
+    private void schedule()
+    {
+        if(this.scheduled)
+            return;
+
+        timer.schedule(this::flush, C.WRITE_BEHIND_DELAY, TimeUnit.MILLISECONDS);
+        this.scheduled = true;
+    }
+}
@@ -0,0 +1,74 @@
+package smile.random.safelogger.logic.models;
+
+import smile.random.safelogger.logic.C;
+
+/**
+ * Author : Assaf Attias
+ * The key derivation function of an authentication key and its parameters (saved with the key in the DB).
+ */
+public class KdfParams
+{
+    private int kdf;
+    private int cost;
+    private int blockSize;
+    private int parallelism;
+
+    /**
+     * Constructor
+     * @param kdf - the key derivation function (C.KDF_PBKDF2_SHA512, C.KDF_PBKDF2, C.KDF_SCRYPT)
+     * @param cost - the number of iterations (PBKDF2) or the cpu/memory cost N (scrypt)
+     * @param blockSize - the block size r (scrypt), 0 if not used
+     * @param parallelism - the parallelism p (scrypt), 0 if not used
+     */
+    public KdfParams(int kdf, int cost, int blockSize, int parallelism)
+    {
+        this.kdf = kdf;
+        this.cost = cost;
+        this.blockSize = blockSize;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Check if a key derived with these parameters should be derived again with the given ones.
+     * the target cost is calibrated on every app start and is noisy, so a lower cost is weaker only by a real margin (C.KDF_REHASH_MARGIN).
+     * @param target - the parameters new keys are derived with
+     * @return true if the function is different, the cost is lower than the target by more than the margin
+     * or any of the other parameters is lower than the target, false otherwise
+     */
+    public boolean isWeakerThan(KdfParams target)
+    {
+        return this.kdf != target.kdf || (long)this.cost * C.KDF_REHASH_MARGIN < target.cost || this.blockSize < target.blockSize || this.parallelism < target.parallelism;
+    }
+
+    /**
+     * Get the key derivation function
+     * @return C.KDF_PBKDF2_SHA512, C.KDF_PBKDF2 or C.KDF_SCRYPT
+     */
+    public int getKdf() {
+        return kdf;
+    }
+
+    /**
+     * Get the number of iterations (PBKDF2) or the cpu/memory cost (scrypt)
+     * @return the cost
+     */
+    public int getCost() {
+        return cost;
+    }
+
+    /**
+     * Get the block size (scrypt)
+     * @return the block size, 0 if not used
+     */
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * Get the parallelism (scrypt)
+     * @return the parallelism, 0 if not used
+     */
+    public int getParallelism() {
+        return parallelism;
+    }
+}
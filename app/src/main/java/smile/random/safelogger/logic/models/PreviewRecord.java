@@ -3,13 +3,11 @@ package smile.random.safelogger.logic.models;
 import android.util.Log;
 
 import java.io.Serializable;
-import java.time.LocalDateTime;
-import java.time.temporal.ChronoUnit;
-import java.util.Arrays;
+import java.nio.ByteBuffer;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
 
-import javax.crypto.SecretKey;
-
-import smile.random.safelogger.logic.SecurityHandler;
+import smile.random.safelogger.logic.C;
 
 /**
  * Author : Assaf Attias
@@ -22,107 +20,85 @@ public class PreviewRecord implements Serializable
     private String logName;
     private String userName;
 
-    private byte[] encrypted;
-    private byte[] sIv;
-
-    private String password = null;
+    private long fingerprint;
 
     private int dayCount;
-    private int day;
-    private int month;
-    private int year;
+    private long date;
 
     /**
      * Constructor
      * @param id - the id of the log
      * @param logName - the name of the log
      * @param userName - the user-name of the log
-     * @param encrypted - the encrypted password of the log
-     * @param sIv - the initial vector that was used to encrypt the log
-     * @param day - the day the log was created
-     * @param month - the month the log was created
-     * @param year - the year the log was created
+     * @param fingerprint - fingerprint of the encrypted password, changes whenever the password is re-encrypted
+     * @param date - the date the log password was created (epoch-day)
      */
-    public PreviewRecord(int id, String logName, String userName, byte[] encrypted, byte[] sIv, int day, int month, int year)
+    public PreviewRecord(int id, String logName, String userName, long fingerprint, long date)
     {
         this.id = id;
         this.logName = logName;
         this.userName = userName;
-        this.encrypted = encrypted;
-        this.sIv = sIv;
+        this.fingerprint = fingerprint;
 
-        this.day = day;
-        this.month = month;
-        this.year = year;
+        this.date = date;
 
-        this.dayCount = calculatePasswordDayCount(day,month,year);
+        this.dayCount = (int)(LocalDate.now().toEpochDay() - date);
     }
 
     /**
-     * * Decrypt the Password using a given secret and saves (update) the plain text in this object
-     * @param secretKey - a given key to use when decrypting
-     * @throws Exception - when decrypting
+     * Calculate the fingerprint of an encrypted password from the initial vector (or the nonce) it was encrypted with.
+     * a new random initial vector is used for every encryption, so the fingerprint changes with the encrypted password.
+     * @param sIv - the initial vector that was used to encrypt the password
+     * @return fingerprint of the encrypted password
      */
-    public void setPassword(SecretKey secretKey) throws Exception
+    public static long fingerprintOf(byte[] sIv)
     {
-        if(this.password == null)
-            this.password = SecurityHandler.decrypt(this.encrypted,secretKey,this.sIv);
+        return ByteBuffer.wrap(sIv).getLong();
     }
 
     /**
-     * Get the number of days the current password is used
-     * @return - the number of days that passed since the password changed
+     * Calculate the fingerprint of an encrypted password in any format, from its initial vector or from the nonce of a packed password.
+     * @param encrypted - the encrypted password
+     * @param sIv - the initial vector that was used to encrypt the password, null for a packed password (see SecurityHandler.encryptRecord)
+     * @return fingerprint of the encrypted password
      */
-    public int getDayCount() {
-        return dayCount;
-    }
-
-    /**
-     * Get the id of the log record
-     * @return - the log id
-     */
-    public int getId() {
-        return id;
-    }
-
-    /**
-     * Get the day (in a month) that the current password of the log record was created
-     * @return a given day of a date
-     */
-    public int getDay() {
-        return day;
+    public static long fingerprintOf(byte[] encrypted, byte[] sIv)
+    {
+        if(sIv != null)
+            return fingerprintOf(sIv);
+        return ByteBuffer.wrap(encrypted, C.RECORD_HEADER_SIZE, Long.BYTES).getLong();
     }
 
     /**
-     * Get the month (in a year) that the current password of the log record was created
-     * @return a given month of a date
+     * Get the fingerprint of the encrypted password
+     * @return - fingerprint, changes whenever the password is re-encrypted
      */
-    public int getMonth() {
-        return month;
+    public long getFingerprint() {
+        return fingerprint;
     }
 
     /**
-     * Get the encrypted byte representation of the password
-     * @return - byte array, encrypted password
+     * Get the number of days the current password is used
+     * @return - the number of days that passed since the password changed
      */
-    public byte[] getEncrypted() {
-        return encrypted;
+    public int getDayCount() {
+        return dayCount;
     }
 
     /**
-     * Get the initial byte vector that was used in the encryption process
-     * @return - byte array, initial vector
+     * Get the id of the log record
+     * @return - the log id
      */
-    public byte[] getsIv() {
-        return sIv;
+    public int getId() {
+        return id;
     }
 
     /**
-     * Get the yearthat the current password of the log record was created
-     * @return a given year of a date
+     * Get the date that the current password of the log record was created
+     * @return the date as an epoch-day (days since 1/1/1970)
      */
-    public int getYear() {
-        return year;
+    public long getDate() {
+        return date;
     }
 
     @Override
@@ -131,9 +107,10 @@ public class PreviewRecord implements Serializable
         {
             PreviewRecord other = (PreviewRecord)obj;
             return  other.id == this.id &&
+                    other.fingerprint == this.fingerprint &&
                     this.logName.equals(other.logName) &&
                     this.userName.equals(other.userName) &&
-                    Arrays.equals(this.encrypted,other.encrypted);
+                    this.date == other.date;
         }
 
         return super.equals(obj);
@@ -161,31 +138,7 @@ public class PreviewRecord implements Serializable
      */
     public String getStartDate()
     {
-        return this.day + "/" + this.month+ "/" + this.year;
-    }
-
-    /**
-     * Get the plain-text password, can only be called after calling the method setPassword
-     * @return plain-text decrypted password, null if 'setPassword' was not called
-     */
-    public String getPassword() {
-        return password;
-    }
-
-    /**
-     * Calculates the number of days that passed since the password created (a given parameters)
-     * until the current date.
-     * @param day - the day the password was created
-     * @param month - the month the password was created
-     * @param year - the year the password was created
-     * @return number of days that passed since the given parameters until today
-     */
-    private int calculatePasswordDayCount(int day, int month, int year)
-    {
-        LocalDateTime recordDate = LocalDateTime.of(year,month,day,0,0);
-        LocalDateTime currentDate = LocalDateTime.now();
-
-        return (int) ChronoUnit.DAYS.between(recordDate,currentDate);
+        return LocalDate.ofEpochDay(this.date).format(DateTimeFormatter.ofPattern(C.DATE_FORMAT));
     }
 
 }
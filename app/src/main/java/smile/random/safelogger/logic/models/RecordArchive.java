@@ -1,10 +1,11 @@
 package smile.random.safelogger.logic.models;
 
-import java.time.LocalDateTime;
-import java.time.temporal.ChronoUnit;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
 
 import javax.crypto.SecretKey;
 
+import smile.random.safelogger.logic.C;
 import smile.random.safelogger.logic.SecurityHandler;
 
 /**
@@ -15,12 +16,8 @@ public class RecordArchive
 {
     private int id;
     private int logId;
-    private int startDay;
-    private int startMonth;
-    private int startYear;
-    private int endDay;
-    private int endMonth;
-    private int endYear;
+    private long startDate;
+    private long endDate;
     private byte[] encrypted;
     private byte[] sIv;
 
@@ -32,43 +29,36 @@ public class RecordArchive
      * Constructor
      * @param id - the id of the archive password
      * @param logId - the log id that the archive belongs to
-     * @param startDay - the day of the date that the password started been used
-     * @param startMonth - the month of the date that the password started been used
-     * @param startYear - the year of the date that the password started been used
-     * @param endDay - the day of the date that the password stopped been used
-     * @param endMonth - the month of the date that the password stopped been used
-     * @param endYear - the year of the date that the password stopped been used
+     * @param startDate - the date that the password started been used (epoch-day)
+     * @param endDate - the date that the password stopped been used (epoch-day)
      * @param encrypted - the encrypted password
-     * @param sIv - the initial vector that was used to encrypt the password
+     * @param sIv - the initial vector that was used to encrypt the password, null for a packed password
      */
-    public RecordArchive(int id, int logId, int startDay, int startMonth, int startYear, int endDay, int endMonth, int endYear, byte[] encrypted, byte[] sIv)
+    public RecordArchive(int id, int logId, long startDate, long endDate, byte[] encrypted, byte[] sIv)
     {
         this.id = id;
         this.logId = logId;
 
-        this.startDay = startDay;
-        this.startMonth = startMonth;
-        this.startYear = startYear;
-        this.endDay = endDay;
-        this.endMonth = endMonth;
-        this.endYear = endYear;
+        this.startDate = startDate;
+        this.endDate = endDate;
 
         this.encrypted = encrypted;
         this.sIv = sIv;
 
         this.password = null;
-        this.dayCount = calculatePasswordDayCount(startDay,startMonth,startYear,endDay,endMonth,endYear);
+        this.dayCount = (int)(endDate - startDate);
     }
 
     /**
      * Decrypt the Password using a given secret and saves (update) the plain text in this object
      * @param secretKey - a given key to use when decrypting
+     * @param legacy - true if a password in the old format is accepted (see SecurityHandler.decryptRecord)
      * @throws Exception - when decrypting
      */
-    public void setPassword(SecretKey secretKey) throws Exception
+    public void setPassword(SecretKey secretKey, boolean legacy) throws Exception
     {
         if(this.password == null)
-            this.password = SecurityHandler.decrypt(this.encrypted,secretKey,this.sIv);
+            this.password = SecurityHandler.decryptRecord(this.encrypted,secretKey,this.sIv,legacy);
     }
 
     /**
@@ -91,7 +81,7 @@ public class RecordArchive
      */
     public String getStartDate()
     {
-        return startDay + "/" + startMonth + "/" + startYear;
+        return LocalDate.ofEpochDay(startDate).format(DateTimeFormatter.ofPattern(C.DATE_FORMAT));
     }
 
     /**
@@ -100,7 +90,7 @@ public class RecordArchive
      */
     public String getEndDate()
     {
-        return endDay + "/" + endMonth + "/" + endYear;
+        return LocalDate.ofEpochDay(endDate).format(DateTimeFormatter.ofPattern(C.DATE_FORMAT));
     }
 
     /**
@@ -110,22 +100,4 @@ public class RecordArchive
     public int getId() {
         return id;
     }
-
-    /**
-     * Calculates the number of days that the password have benn used (base on a given parameters)
-     * @param sDay - the start day of the date the password have been used
-     * @param sMonth - the start month of the date the password have been used
-     * @param sYear - the start year of the date the password have been used
-     * @param eDay - the end day of the date the password have been used
-     * @param eMonth - the end month of the date the password have been used
-     * @param eYear - the end year of the date the password have been used
-     * @return number of days that passed.
-     */
-    private static int calculatePasswordDayCount(int sDay, int sMonth, int sYear, int eDay, int eMonth, int eYear)
-    {
-        LocalDateTime recordDate = LocalDateTime.of(sYear,sMonth,sDay,0,0);
-        LocalDateTime currentDate = LocalDateTime.of(eYear,eMonth,eDay,0,0);
-
-        return (int) ChronoUnit.DAYS.between(recordDate,currentDate);
-    }
 }
@@ -0,0 +1,71 @@
+package smile.random.safelogger.logic.models;
+
+import java.util.List;
+
+/**
+ * Author : Assaf Attias
+ * A representation of the changes that were made to the log records since a given change version (fetched from the DB).
+ */
+public class RecordChanges
+{
+    private long version;
+    private List<Integer> inserted;
+    private List<Integer> updated;
+    private List<Integer> removed;
+
+    /**
+     * Constructor
+     * @param version - the latest change version that these changes include
+     * @param inserted - the id's of the records that were inserted
+     * @param updated - the id's of the records that were updated
+     * @param removed - the id's of the records that were removed
+     */
+    public RecordChanges(long version, List<Integer> inserted, List<Integer> updated, List<Integer> removed)
+    {
+        this.version = version;
+        this.inserted = inserted;
+        this.updated = updated;
+        this.removed = removed;
+    }
+
+    /**
+     * Get the latest change version that these changes include, use it to fetch the next changes
+     * @return the change version
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Get the id's of the records that were inserted
+     * @return list of record id's
+     */
+    public List<Integer> getInserted() {
+        return inserted;
+    }
+
+    /**
+     * Get the id's of the records that were updated (and not inserted or removed)
+     * @return list of record id's
+     */
+    public List<Integer> getUpdated() {
+        return updated;
+    }
+
+    /**
+     * Get the id's of the records that were removed
+     * @return list of record id's
+     */
+    public List<Integer> getRemoved() {
+        return removed;
+    }
+
+    /**
+     * Check if there are no changes
+     * @return true if no record was inserted, updated or removed
+     */
+    public boolean isEmpty()
+    {
+        return inserted.isEmpty() && updated.isEmpty() && removed.isEmpty();
+    }
+}
@@ -0,0 +1,101 @@
+package smile.random.safelogger.logic.models;
+
+import smile.random.safelogger.logic.C;
+
+/**
+ * Author : Assaf Attias
+ * A change of a log record that was not written to the DB yet (see WriteBehindQueue).
+ * successive changes of the same record are merged into one mutation.
+ */
+public class RecordMutation
+{
+    private int id;
+    private int op;
+    private String logName;
+    private String userName;
+    private byte[][] cipher;
+
+    /**
+     * Constructor
+     * @param id - the id of the record, a temporary negative id for an inserted record
+     * @param op - the operation (C.CHANGE_INSERT, C.CHANGE_UPDATE, C.CHANGE_DELETE)
+     * @param logName - the (new) log name, null if not changed
+     * @param userName - the (new) user name, null if not changed
+     * @param cipher - the (new) encrypted password, initial vector and mac (C.ENCRYPTED, C.IV, C.MAC), null if not changed
+     */
+    public RecordMutation(int id, int op, String logName, String userName, byte[][] cipher)
+    {
+        this.id = id;
+        this.op = op;
+        this.logName = logName;
+        this.userName = userName;
+        this.cipher = cipher;
+    }
+
+    /**
+     * Merge a later update of the same record into this mutation, the fields that are not null override the current ones
+     * @param logName - the new log name, null if not changed
+     * @param userName - the new user name, null if not changed
+     * @param cipher - the new encrypted password, initial vector and mac, null if not changed
+     */
+    public void merge(String logName, String userName, byte[][] cipher)
+    {
+        if(logName != null)
+            this.logName = logName;
+        if(userName != null)
+            this.userName = userName;
+        if(cipher != null)
+            this.cipher = cipher;
+    }
+
+    /**
+     * Turn this mutation into a removal of the record
+     */
+    public void delete()
+    {
+        this.op = C.CHANGE_DELETE;
+        this.logName = null;
+        this.userName = null;
+        this.cipher = null;
+    }
+
+    /**
+     * Get the id of the record, negative if the record is not inserted yet
+     * @return the record id
+     */
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * Get the operation of this mutation
+     * @return C.CHANGE_INSERT, C.CHANGE_UPDATE or C.CHANGE_DELETE
+     */
+    public int getOp() {
+        return op;
+    }
+
+    /**
+     * Get the (new) log name
+     * @return the log name, null if not changed
+     */
+    public String getLogName() {
+        return logName;
+    }
+
+    /**
+     * Get the (new) user name
+     * @return the user name, null if not changed
+     */
+    public String getUserName() {
+        return userName;
+    }
+
+    /**
+     * Get the (new) encrypted password
+     * @return array with the encrypted password, initial vector and mac (C.ENCRYPTED, C.IV, C.MAC), null if not changed
+     */
+    public byte[][] getCipher() {
+        return cipher;
+    }
+}
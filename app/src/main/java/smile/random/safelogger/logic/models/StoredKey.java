@@ -0,0 +1,60 @@
+package smile.random.safelogger.logic.models;
+
+/**
+ * Author : Assaf Attias
+ * The saved information of an authentication key, read together from one row of the DB.
+ */
+public class StoredKey
+{
+    private byte[] hashed;
+    private byte[] salt;
+    private KdfParams params;
+    private int recordFormat;
+
+    /**
+     * Constructor
+     * @param hashed - the key verifier (see SecurityHandler.getVerifier)
+     * @param salt - the salt the key was derived with
+     * @param params - the key derivation function and parameters the secret is derived with
+     * @param recordFormat - C.RECORD_FORMAT_GCM if all the passwords are packed, C.RECORD_FORMAT_CBC if some may be in the old format
+     */
+    public StoredKey(byte[] hashed, byte[] salt, KdfParams params, int recordFormat)
+    {
+        this.hashed = hashed;
+        this.salt = salt;
+        this.params = params;
+        this.recordFormat = recordFormat;
+    }
+
+    /**
+     * Get the key verifier
+     * @return the saved verifier of the key
+     */
+    public byte[] getHashed() {
+        return hashed;
+    }
+
+    /**
+     * Get the salt of the key
+     * @return the salt the key was derived with
+     */
+    public byte[] getSalt() {
+        return salt;
+    }
+
+    /**
+     * Get the key derivation function and parameters of the key
+     * @return the parameters the secret is derived with
+     */
+    public KdfParams getParams() {
+        return params;
+    }
+
+    /**
+     * Get the record format of the key
+     * @return C.RECORD_FORMAT_GCM or C.RECORD_FORMAT_CBC
+     */
+    public int getRecordFormat() {
+        return recordFormat;
+    }
+}
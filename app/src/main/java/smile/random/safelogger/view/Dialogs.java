@@ -61,41 +61,41 @@ public class Dialogs
             String userName = edtUser.getText().toString().trim();
             String password = edtPass.getText().toString().trim();
 
-            InfoManager.ValidationResult valRes = InfoManager.get().validateLog(logName,userName,password);
-            switch (valRes)
-            {
-                case Legal:
-                    boolean actionRes = InfoManager.get().addRecord(logName,userName,password);
-
-                    if (actionRes)
-                    {
-                        dialog.dismiss();
-                        activity.updateRecordList();
-                        Toast.makeText(activity,"Record Added successfully", Toast.LENGTH_SHORT).show();
-                    }
-                    else
-                        Toast.makeText(activity,"Record Creation Failed", Toast.LENGTH_SHORT).show();
-
-                    break;
-                case BadShortName:
-                    edtLogName.setError("Log name cannot be empty.");
-                    edtLogName.requestFocus();
-                    return;
-                case BadShortUserName:
-                    edtUser.setError("Log user-name cannot be empty.");
-                    edtUser.requestFocus();
-                    return;
-                case BadShortPassword:
-                    edtPass.setError("Log password cannot be empty.");
-                    edtPass.requestFocus();
-                    return;
-                case BadExist:
-                    edtLogName.setError("Log name already exists.");
-                    edtLogName.requestFocus();
-                    return;
-                default:
-                    return;
-            }
+            InfoManager.get().async().validateLog(logName,userName,password).thenAcceptAsync(valRes -> {
+                switch (valRes)
+                {
+                    case Legal:
+                        InfoManager.get().async().addRecord(logName,userName,password).thenAcceptAsync(actionRes -> {
+                            if (actionRes)
+                            {
+                                dialog.dismiss();
+                                Toast.makeText(activity,"Record Added successfully", Toast.LENGTH_SHORT).show();
+                            }
+                            else
+                                Toast.makeText(activity,"Record Creation Failed", Toast.LENGTH_SHORT).show();
+                        }, activity::runOnUiThread);
+
+                        break;
+                    case BadShortName:
+                        edtLogName.setError("Log name cannot be empty.");
+                        edtLogName.requestFocus();
+                        return;
+                    case BadShortUserName:
+                        edtUser.setError("Log user-name cannot be empty.");
+                        edtUser.requestFocus();
+                        return;
+                    case BadShortPassword:
+                        edtPass.setError("Log password cannot be empty.");
+                        edtPass.requestFocus();
+                        return;
+                    case BadExist:
+                        edtLogName.setError("Log name already exists.");
+                        edtLogName.requestFocus();
+                        return;
+                    default:
+                        return;
+                }
+            }, activity::runOnUiThread);
         });
 
         // set clear view action
@@ -122,14 +122,11 @@ public class Dialogs
 
         dialogDelete.setTitle("Warning! (Delete Record)");
         dialogDelete.setMessage("Are you sure you want to delete " + record.getLogName() + "?");
-        dialogDelete.setPositiveButton("Yes", (dialogInterface, i) -> {
-            boolean actionRes = InfoManager.get().removeRecord(record);
-
-            if (actionRes) Toast.makeText(activity,"Record Removed successfully", Toast.LENGTH_SHORT).show();
-            else Toast.makeText(activity,"Record Remove Failed", Toast.LENGTH_SHORT).show();
-
-            activity.updateRecordList();
-        });
+        dialogDelete.setPositiveButton("Yes", (dialogInterface, i) ->
+            InfoManager.get().async().removeRecord(record).thenAcceptAsync(actionRes -> {
+                if (actionRes) Toast.makeText(activity,"Record Removed successfully", Toast.LENGTH_SHORT).show();
+                else Toast.makeText(activity,"Record Remove Failed", Toast.LENGTH_SHORT).show();
+            }, activity::runOnUiThread));
         dialogDelete.setNegativeButton("Cancel", (dialogInterface, i) -> dialogInterface.dismiss());
         dialogDelete.show();
     }
@@ -161,14 +158,13 @@ public class Dialogs
      */
     private static void makeUpdateAction(MainActivity activity,Dialog dialog,PreviewRecord record,String logName,String userName, String password)
     {
-        boolean actionRes = InfoManager.get().updateRecord(record, logName, userName, password);
-
-        if (actionRes) {
-            dialog.dismiss();
-            activity.updateRecordList();
-            Toast.makeText(activity, "Record updated successfully", Toast.LENGTH_SHORT).show();
-        } else
-            Toast.makeText(activity, "Record update failed", Toast.LENGTH_SHORT).show();
+        InfoManager.get().async().updateRecord(record, logName, userName, password).thenAcceptAsync(actionRes -> {
+            if (actionRes) {
+                dialog.dismiss();
+                Toast.makeText(activity, "Record updated successfully", Toast.LENGTH_SHORT).show();
+            } else
+                Toast.makeText(activity, "Record update failed", Toast.LENGTH_SHORT).show();
+        }, activity::runOnUiThread);
     }
 
     /**
@@ -280,7 +276,7 @@ public class Dialogs
         final EditText edtUserName = dialog.findViewById(R.id.updEdtUser);
         edtUserName.setText(record.getUserName());
         final EditText edtPassword = dialog.findViewById(R.id.updEedtPass);
-        edtPassword.setText(record.getPassword());
+        InfoManager.get().async().getPassword(record).thenAcceptAsync(edtPassword::setText, activity::runOnUiThread);
 
         Button btnUpdate = dialog.findViewById(R.id.btnUpdate);
         btnUpdate.setOnClickListener(view -> {
@@ -289,35 +285,36 @@ public class Dialogs
             final String userName = edtUserName.getText().toString().trim();
             final String password = edtPassword.getText().toString().trim();
 
-            InfoManager.ValidationResult valRes = InfoManager.get().validateLogUpdate(record,logName,userName,password);
-            switch (valRes) {
-                case WarnExist:
-                    AlertDialog.Builder warningDialog = showDialogWarning(activity);
-                    warningDialog.setPositiveButton("Yes", (dialogInterface, i) -> makeUpdateAction(activity,dialog,record,logName,userName,password));
-                    warningDialog.show();
-                    break;
-                case Legal:
-                    makeUpdateAction(activity,dialog,record,logName,userName,password);
-                    break;
-                case BadShortName:
-                    edtLogName.setError("Log name cannot be empty.");
-                    edtLogName.requestFocus();
-                    return;
-                case BadShortUserName:
-                    edtUserName.setError("Log user-name cannot be empty.");
-                    edtUserName.requestFocus();
-                    return;
-                case BadShortPassword:
-                    edtPassword.setError("Log password cannot be empty.");
-                    edtPassword.requestFocus();
-                    return;
-                case BadExist:
-                    edtLogName.setError("Log name already exists.");
-                    edtLogName.requestFocus();
-                    return;
-                default:
-                    return;
-            }
+            InfoManager.get().async().validateLogUpdate(record,logName,userName,password).thenAcceptAsync(valRes -> {
+                switch (valRes) {
+                    case WarnExist:
+                        AlertDialog.Builder warningDialog = showDialogWarning(activity);
+                        warningDialog.setPositiveButton("Yes", (dialogInterface, i) -> makeUpdateAction(activity,dialog,record,logName,userName,password));
+                        warningDialog.show();
+                        break;
+                    case Legal:
+                        makeUpdateAction(activity,dialog,record,logName,userName,password);
+                        break;
+                    case BadShortName:
+                        edtLogName.setError("Log name cannot be empty.");
+                        edtLogName.requestFocus();
+                        return;
+                    case BadShortUserName:
+                        edtUserName.setError("Log user-name cannot be empty.");
+                        edtUserName.requestFocus();
+                        return;
+                    case BadShortPassword:
+                        edtPassword.setError("Log password cannot be empty.");
+                        edtPassword.requestFocus();
+                        return;
+                    case BadExist:
+                        edtLogName.setError("Log name already exists.");
+                        edtLogName.requestFocus();
+                        return;
+                    default:
+                        return;
+                }
+            }, activity::runOnUiThread);
         });
         dialog.show();
     }
@@ -1,6 +1,8 @@
 package smile.random.safelogger.view;
 
 import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -9,11 +11,14 @@ import android.widget.ImageView;
 import android.widget.TextView;
 
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.Executor;
 
 import smile.random.safelogger.R;
 import smile.random.safelogger.logic.C;
+import smile.random.safelogger.logic.InfoManager;
 import smile.random.safelogger.logic.models.PreviewRecord;
 
 /**
@@ -21,6 +26,9 @@ import smile.random.safelogger.logic.models.PreviewRecord;
  * An Implementation of a List Adapter for a ListView that holds a record in each row.
  * this list support the following operations:
  *  * Search & Filter
+ *  * Patch only the changed rows (see applyChanges)
+ * the pages of the records are fetched in the background, the fetched records are added by the record listener
+ * of the activity (see applyChanges), so the main thread never waits for the database.
  */
 public class RecordListAdapter extends BaseAdapter
 {
@@ -39,8 +47,14 @@ public class RecordListAdapter extends BaseAdapter
     private int layout;
     private LayoutInflater inflater;
 
-    private List<PreviewRecord> recordList;
+    private LinkedHashMap<Integer, PreviewRecord> records; // all the record data by id
     private ArrayList<PreviewRecord> showRecordList;
+    private String filterText = "";
+
+    private final Executor mainThread = new Handler(Looper.getMainLooper())::post;
+    private boolean morePages = true; // false after an empty page was fetched
+    private boolean loadingPage = false;
+    private boolean loadingAll = false;
 
     /**
      * Constructor
@@ -53,7 +67,7 @@ public class RecordListAdapter extends BaseAdapter
         this.layout = R.layout.row;
         this.inflater = LayoutInflater.from(context);
 
-        this.recordList = new ArrayList<>(recordList);
+        this.records = new LinkedHashMap<>();
 
         this.showRecordList = new ArrayList<>();
         setRecordList(recordList);
@@ -129,33 +143,142 @@ public class RecordListAdapter extends BaseAdapter
      */
     public void setRecordList(List<PreviewRecord> list)
     {
-        this.recordList = new ArrayList<>();
-        this.recordList.addAll(list);
+        this.records = new LinkedHashMap<>();
+        for(PreviewRecord record : list)
+            this.records.put(record.getId(),record);
+        this.morePages = true;
         filter("");
     }
 
+    /**
+     * Apply the changes of the records (see RecordListener) to the list, only the changed rows are updated and the filter is kept.
+     * must be called on the main thread.
+     * @param inserted - records that were added
+     * @param updated - records that were changed
+     * @param removed - ids of the records that were removed
+     */
+    public void applyChanges(List<PreviewRecord> inserted, List<PreviewRecord> updated, List<Integer> removed)
+    {
+        for(int id : removed)
+        {
+            if(this.records.remove(id) != null)
+            {
+                int index = indexOfShown(id);
+                if(index != -1)
+                    this.showRecordList.remove(index);
+            }
+        }
+        for(PreviewRecord record : updated)
+            putRecord(record);
+        for(PreviewRecord record : inserted)
+            putRecord(record);
+
+        notifyDataSetChanged();
+    }
+
+    /**
+     * Add or replace a record in the record data list and in its row (if shown by the filter)
+     * @param record - the new or changed record
+     */
+    private void putRecord(PreviewRecord record)
+    {
+        this.records.put(record.getId(),record);
+
+        int index = indexOfShown(record.getId());
+        boolean show = isShown(record);
+        if(index != -1 && show)
+            this.showRecordList.set(index,record);
+        else if(index != -1)
+            this.showRecordList.remove(index);
+        else if(show)
+            this.showRecordList.add(record);
+    }
+
+    /**
+     * Find the row of a given record
+     * @param id - the id of the record
+     * @return the position of the record in the shown list, -1 if not shown
+     */
+    private int indexOfShown(int id)
+    {
+        for(int i = 0; i < this.showRecordList.size(); i++)
+        {
+            if(this.showRecordList.get(i).getId() == id)
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Check if a given record passes the current filter
+     * @param record - the record to check
+     * @return true if the log name of the record contains the filter txt (or there is no filter), false otherwise
+     */
+    private boolean isShown(PreviewRecord record)
+    {
+        return this.filterText.isEmpty() || record.getLogName().toLowerCase(Locale.getDefault()).contains(this.filterText);
+    }
+
+    /**
+     * Fetch the next page of records (if exists) in the background, the records are added to the list (keeping the current filter)
+     * by the record listener when the page is loaded. must be called on the main thread.
+     */
+    public void loadNextPage()
+    {
+        if(this.loadingPage || this.loadingAll || !this.morePages)
+            return;
+
+        this.loadingPage = true;
+        InfoManager.get().async().getNextRecordsPage().thenAcceptAsync(page -> {
+            this.loadingPage = false;
+            this.morePages = page != null && !page.isEmpty();
+        }, this.mainThread);
+    }
+
+    /**
+     * Fetch all the remaining pages of records in the background, the records are added to the list (keeping the current filter)
+     * by the record listener page after page. must be called on the main thread.
+     */
+    private void loadAllPages()
+    {
+        if(this.loadingAll || !this.morePages)
+            return;
+
+        this.loadingAll = true;
+        InfoManager.get().async().loadAllRecordPages().thenAcceptAsync(loaded -> {
+            this.loadingAll = false;
+            this.morePages = !loaded;
+        }, this.mainThread);
+    }
+
     /**
      * Update the records that the list shows and filter entries that their log name not starts with the given filter txt.
+     * filtering needs all the records, so the remaining pages are fetched in the background when the filter is not empty,
+     * the matching records of these pages are shown as they are loaded.
      * @param charText - a filter txt, the prefix of the log names needed
      */
     public void filter(String charText)
     {
         String filterText = charText.trim().toLowerCase(Locale.getDefault());
-        this.showRecordList.clear();
+        this.filterText = filterText;
 
-        if(filterText == null || filterText.isEmpty())
+        this.showRecordList.clear();
+        if(filterText.isEmpty())
         {
-            this.showRecordList.addAll(this.recordList);
+            this.showRecordList.addAll(this.records.values());
         }
         else
         {
-            for(PreviewRecord record : this.recordList)
+            for(PreviewRecord record : this.records.values())
             {
-                if(record.getLogName().toLowerCase(Locale.getDefault()).contains(filterText))
+                if(isShown(record))
                     this.showRecordList.add(record);
             }
         }
 
         notifyDataSetChanged();
+
+        if(!filterText.isEmpty())
+            loadAllPages();
     }
 }
@@ -13,8 +13,10 @@ import android.widget.TextView;
 import android.widget.Toast;
 
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 import smile.random.safelogger.R;
+import smile.random.safelogger.logic.AsyncInfoManager;
 import smile.random.safelogger.logic.C;
 import smile.random.safelogger.logic.InfoManager;
 import smile.random.safelogger.logic.models.PreviewRecord;
@@ -45,28 +47,18 @@ public class ExtendedInfoActivity extends Activity
         ProgressBar progressBar = findViewById(R.id.extend_progress_bar);
         TextView txtDayCount = findViewById(R.id.extend_txt_days);
 
-        ListView archiveList = findViewById(R.id.extend_archive_list);
+        final ListView archiveList = findViewById(R.id.extend_archive_list);
 
-        // Get Data - record information and archive
+        // Get Data - record information
         Intent intent = getIntent();
         final PreviewRecord logRecord = (PreviewRecord) intent.getSerializableExtra("record");
-        List<RecordArchive> logArchive = InfoManager.get().getRecordArchive(logRecord.getId());
-
-        // validate
-        boolean decrypted = logArchive != null;
-        for(int i = 0; decrypted && i < logArchive.size(); i++)
-            decrypted = logArchive.get(i).getPassword() != null;
-
-        if(logRecord == null || !decrypted || logRecord.getPassword() == null)
+        if(logRecord == null)
         {
-            Toast.makeText(this,"Operation Failed, dec=" + decrypted + ", pass_null=" + (logRecord.getPassword() == null),Toast.LENGTH_LONG).show();
+            Toast.makeText(this,"Operation Failed, no record",Toast.LENGTH_LONG).show();
             finish();
             return;
         }
 
-        if (logArchive.isEmpty())
-            Toast.makeText(this,"Archive is empty",Toast.LENGTH_LONG).show();
-
         // set
         String logName = logRecord.getLogName();
         if(logName.length() > C.MAX_TEXT_LEN)
@@ -84,27 +76,54 @@ public class ExtendedInfoActivity extends Activity
         progressBar.setMax(C.MEDIUM_THRESHOLD);
         progressBar.setProgress(currDayCount < C.MEDIUM_THRESHOLD ? currDayCount : C.MEDIUM_THRESHOLD,true);
 
-        final ArchiveListAdapter listAdapter = new ArchiveListAdapter(this,logArchive);
-        archiveList.setAdapter(listAdapter);
+        btnShow.setEnabled(false); // until the passwords are decrypted
 
-        // show / hide passwords
-        btnShow.setOnClickListener(view -> {
+        // Get Data - the archive and the password are fetched and decrypted in the background
+        AsyncInfoManager async = InfoManager.get().async();
+        CompletableFuture<List<RecordArchive>> archiveFuture = async.getRecordArchive(logRecord.getId());
+        CompletableFuture<String> passwordFuture = async.getPassword(logRecord);
+        archiveFuture.thenAcceptBothAsync(passwordFuture, (logArchive, logPassword) -> {
+            if(isDestroyed())
+                return;
 
-            listAdapter.setShowPass(!listAdapter.isShowPass());
+            // validate
+            boolean decrypted = logArchive != null;
+            for(int i = 0; decrypted && i < logArchive.size(); i++)
+                decrypted = logArchive.get(i).getPassword() != null;
 
-            if (listAdapter.isShowPass())
-            {
-                txtLogPassword.setText(logRecord.getPassword());
-                btnShow.setText("Hide Passwords");
-            }
-            else
+            if(!decrypted || logPassword == null)
             {
-                txtLogPassword.setText(C.PASSWORD_HIDDEN);
-                btnShow.setText("Show Passwords");
+                Toast.makeText(this,"Operation Failed, dec=" + decrypted + ", pass_null=" + (logPassword == null),Toast.LENGTH_LONG).show();
+                finish();
+                return;
             }
 
-            listAdapter.notifyDataSetChanged();
-        });
+            if (logArchive.isEmpty())
+                Toast.makeText(this,"Archive is empty",Toast.LENGTH_LONG).show();
+
+            final ArchiveListAdapter listAdapter = new ArchiveListAdapter(this,logArchive);
+            archiveList.setAdapter(listAdapter);
+
+            // show / hide passwords
+            btnShow.setOnClickListener(view -> {
+
+                listAdapter.setShowPass(!listAdapter.isShowPass());
+
+                if (listAdapter.isShowPass())
+                {
+                    txtLogPassword.setText(logPassword);
+                    btnShow.setText("Hide Passwords");
+                }
+                else
+                {
+                    txtLogPassword.setText(C.PASSWORD_HIDDEN);
+                    btnShow.setText("Show Passwords");
+                }
+
+                listAdapter.notifyDataSetChanged();
+            });
+            btnShow.setEnabled(true);
+        }, this::runOnUiThread);
 
         // back to main activity
         btnBack.setOnClickListener(view -> finish());
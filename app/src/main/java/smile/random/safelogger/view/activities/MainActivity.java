@@ -2,6 +2,8 @@ package smile.random.safelogger.view.activities;
 
 import android.content.Intent;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.support.design.widget.FloatingActionButton;
 import android.support.v7.app.AlertDialog;
 import android.support.v7.app.AppCompatActivity;
@@ -9,15 +11,16 @@ import android.support.v7.widget.SearchView;
 import android.text.TextUtils;
 import android.view.Menu;
 import android.view.MenuItem;
+import android.widget.AbsListView;
 import android.widget.ListView;
 import android.widget.Toast;
 
-import java.util.List;
+import java.util.Collections;
 
 import smile.random.safelogger.R;
 import smile.random.safelogger.logic.C;
 import smile.random.safelogger.logic.InfoManager;
-import smile.random.safelogger.logic.models.PreviewRecord;
+import smile.random.safelogger.logic.RecordListener;
 import smile.random.safelogger.view.Dialogs;
 import smile.random.safelogger.view.RecordListAdapter;
 
@@ -41,21 +44,10 @@ public class MainActivity extends AppCompatActivity {
     private ListView mListView;
     private RecordListAdapter mRecordListAdapter;
 
-    /**
-     * Update the display of the record list in the activity
-     */
-    public void updateRecordList()
-    {
-        List<PreviewRecord> records = InfoManager.get().getRecordsPreview();
-        if (records == null)
-        {
-            InfoManager.get().logOff();
-            Toast.makeText(this,"Authentication Is Needed",Toast.LENGTH_LONG).show();
-            finish();
-            return;
-        }
-        mRecordListAdapter.setRecordList(records);
-    }
+    // patch the changed rows of the record list, always posted to the main thread since the listener is called while the InfoManager is locked
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final RecordListener mRecordListener = (inserted, updated, removed) ->
+            mMainHandler.post(() -> mRecordListAdapter.applyChanges(inserted, updated, removed));
 
     @Override
     protected void onCreate(Bundle savedInstanceState)
@@ -66,20 +58,35 @@ public class MainActivity extends AppCompatActivity {
         // init
         mListView = findViewById(R.id.listView);
 
-        List<PreviewRecord> records = InfoManager.get().getRecordsPreview();
-        if (records == null)
-        {
-            InfoManager.get().logOff();
-            Toast.makeText(this,"Authentication Is Needed.",Toast.LENGTH_LONG).show();
-            finish();
-            return;
-        }
+        // the records are added by the listener, its first call has all the loaded records
+        mRecordListAdapter = new RecordListAdapter(this,Collections.emptyList());
+        mListView.setAdapter(mRecordListAdapter);
+        InfoManager.get().async().addRecordListener(mRecordListener).thenAcceptAsync(records -> {
+            if (isDestroyed())
+                InfoManager.get().removeRecordListener(mRecordListener); // added after onDestroy
+            else if (records == null)
+            {
+                InfoManager.get().async().logOff();
+                Toast.makeText(this,"Authentication Is Needed.",Toast.LENGTH_LONG).show();
+                finish();
+            }
+            else if (records.isEmpty())
+                Toast.makeText(this,"Record list is empty.",Toast.LENGTH_LONG).show();
+        }, mMainHandler::post);
 
-        if (records.isEmpty())
-            Toast.makeText(this,"Record list is empty.",Toast.LENGTH_LONG).show();
+        // fetch the next page of records when scrolling near the end of the list
+        mListView.setOnScrollListener(new AbsListView.OnScrollListener()
+        {
+            @Override
+            public void onScrollStateChanged(AbsListView absListView, int i) { }
 
-        mRecordListAdapter = new RecordListAdapter(this,records);
-        mListView.setAdapter(mRecordListAdapter);
+            @Override
+            public void onScroll(AbsListView absListView, int firstVisible, int visibleCount, int totalCount)
+            {
+                if(firstVisible + visibleCount >= totalCount - C.PAGE_PREFETCH)
+                    mRecordListAdapter.loadNextPage();
+            }
+        });
 
         // display row (log) actions on click
         mListView.setOnItemClickListener((adapterView, view, i, l) -> {
@@ -97,12 +104,11 @@ public class MainActivity extends AppCompatActivity {
                     case C.TOGGLE_PASSWORD_SHOW:
 
                         if(holder.show) holder.txtPass.setText(C.PASSWORD_HIDDEN);
-                        else holder.txtPass.setText(holder.record.getPassword());
+                        else InfoManager.get().async().getPassword(holder.record).thenAcceptAsync(holder.txtPass::setText, this::runOnUiThread);
                         holder.show = !holder.show;
                         break;
                     case C.UPDATE_ROW_DATA:
-                        Dialogs.showDialogUpdate(MainActivity.this,holder.record);
-                        mRecordListAdapter.setRecordList(InfoManager.get().getRecordsPreview());
+                        Dialogs.showDialogUpdate(MainActivity.this,holder.record); // the list is updated by the record listener
                         break;
                     case C.DELETE_ROW:
                         Dialogs.showDialogDelete(MainActivity.this,holder.record);
@@ -126,6 +132,13 @@ public class MainActivity extends AppCompatActivity {
         btnAddLog.setOnClickListener(view -> Dialogs.showDialogInsert(MainActivity.this));
     }
 
+    @Override
+    protected void onDestroy()
+    {
+        InfoManager.get().removeRecordListener(mRecordListener);
+        super.onDestroy();
+    }
+
     @Override
     public boolean onCreateOptionsMenu(Menu menu)
     {
@@ -176,8 +189,12 @@ public class MainActivity extends AppCompatActivity {
                 Dialogs.showDialogGenerate(MainActivity.this);
                 return true;
             case R.id.action_log_off:
-                InfoManager.get().logOff();
-                finish();
+                InfoManager.get().async().logOff().thenAcceptAsync(loggedOff -> {
+                    if(loggedOff)
+                        finish();
+                    else
+                        Toast.makeText(this,"Unsaved changes could not be written, try again",Toast.LENGTH_LONG).show();
+                }, this::runOnUiThread);
                 return true;
             default:
                 return super.onOptionsItemSelected(item);